@@ -19,15 +19,11 @@ package com.otaupdater;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
-import android.annotation.TargetApi;
-import android.app.DownloadManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -37,10 +33,9 @@ import android.content.ContextWrapper;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
@@ -50,12 +45,23 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import com.otaupdater.utils.Config;
+import com.otaupdater.utils.CopyOnWriteSparseArray;
+import com.otaupdater.utils.DlSnapshot;
 import com.otaupdater.utils.DlState;
+import com.otaupdater.utils.DownloadEvents;
+import com.otaupdater.utils.DownloadScheduler;
 import com.otaupdater.utils.DownloadTask;
 import com.otaupdater.utils.DownloadTask.DownloadListener;
 import com.otaupdater.utils.DownloadTask.DownloadResult;
 import com.otaupdater.utils.KernelInfo;
+import com.otaupdater.utils.NetworkMonitor;
+import com.otaupdater.utils.NetworkMonitor.NetState;
+import com.otaupdater.utils.RateGovernor;
+import com.otaupdater.utils.RetryScheduler;
 import com.otaupdater.utils.RomInfo;
+import com.otaupdater.utils.StateLog;
+import com.otaupdater.utils.StatePersister;
+import com.otaupdater.utils.TaskExecutors;
 
 public class DownloadService extends Service implements DownloadListener {
     public static final String SERVICE_ACTION = "com.otaupdater.downloadservice.command";
@@ -66,6 +72,8 @@ public class DownloadService extends Service implements DownloadListener {
     public static final int CMD_RESUME = 3;
     public static final int CMD_CANCEL = 4;
     public static final int CMD_RETRY = 5;
+    /** sent by {@link RetryScheduler}'s alarm */
+    public static final int CMD_RETRY_DUE = 6;
 
     public static final String EXTRAL_DOWNLOAD_ID = "download_id";
 
@@ -81,26 +89,42 @@ public class DownloadService extends Service implements DownloadListener {
     public static final int NETWORK_NO_WIFI = 2;
     public static final int NETWORK_SIZE_EXCEEDED = 3;
 
-    private final ArrayList<Integer> DOWNLOAD_QUEUE = new ArrayList<Integer>();
-    private final SparseArray<DlState> DOWNLOADS = new SparseArray<DlState>();
+    /*
+     * Everything that schedules downloads (DOWNLOAD_THREADS, the scheduler,
+     * starting and stopping tasks) belongs to the main thread; binder calls
+     * that change anything are posted to it. DOWNLOADS may be read from any
+     * thread, and DlState's fields are volatile so those reads see what the
+     * download threads write.
+     */
+    private final CopyOnWriteSparseArray<DlState> DOWNLOADS = new CopyOnWriteSparseArray<DlState>();
     private final SparseArray<DownloadTask> DOWNLOAD_THREADS = new SparseArray<DownloadTask>();
+    private final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    /** makes looking for a download and adding it one step, see {@link #queueDownload(DlState)} */
+    private final Object QUEUE_LOCK = new Object();
 
     private boolean serviceInUse = false;
     private int startId = -1;
 
     private Config cfg;
+    private DownloadScheduler scheduler;
+    private RetryScheduler retries;
+    private StateLog stateLog;
+    private StatePersister persister;
+    private final DownloadEvents events = new DownloadEvents();
+
+    /** bumped on every change to a download, see {@link #getDownloadsSince} */
+    private long changeSeq = 0;
 
     private NotificationManager nm;
     private WakeLock wakeLock;
 
-    private boolean isNetStateDirty = true;
+    private NetworkMonitor netMonitor;
 
     private long minNextNotifUpdate = 0;
     private static final long NOTIF_REFRESH_DELAY = 500;
 
-    private long minNextWriteUpdate = 0;
-    private static final long WRITE_STATE_DELAY = 100;
-    private static final String STATE_STORE_NAME = "service_state";
+    private static final String STATE_LOG_NAME = "service_state.log";
+    private static final String LEGACY_STATE_STORE_NAME = "service_state";
 
     private static final int IDLE_DELAY = 60000;
     private final Handler DELAY_STOP_HANDLER = new StopHandler(this);
@@ -115,7 +139,7 @@ public class DownloadService extends Service implements DownloadListener {
         public void handleMessage(Message msg) {
             if (service.get().serviceInUse ||
                     service.get().DOWNLOAD_THREADS.size() != 0 ||
-                    service.get().DOWNLOAD_QUEUE.size() != 0) return;
+                    service.get().scheduler.size() != 0) return;
             service.get().stopSelf(service.get().startId);
         }
     }
@@ -151,12 +175,12 @@ public class DownloadService extends Service implements DownloadListener {
             Log.v(Config.LOG_TAG + "Service", "got action: " + action);
 
             if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
-                isNetStateDirty = true;
-                if (DOWNLOAD_THREADS.size() == 0 && DOWNLOAD_QUEUE.size() != 0) {
+                netMonitor.refresh();
+                if (scheduler.size() != 0) {
                     tryStartQueue();
                 }
             } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
-                if (DOWNLOAD_QUEUE.size() != 0) {
+                if (scheduler.size() != 0) {
                     tryStartQueue();
                 }
             } else if (SERVICE_ACTION.equals(action)) {
@@ -179,8 +203,8 @@ public class DownloadService extends Service implements DownloadListener {
                     if (intent.hasExtra(EXTRAL_DOWNLOAD_ID)) {
                         pause(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     } else {
-                        for (int id : DOWNLOAD_QUEUE) {
-                            if (DOWNLOADS.get(id).getStatus() == DlState.STATUS_RUNNING) pause(id);
+                        for (int q = DOWNLOAD_THREADS.size() - 1; q >= 0; q--) {
+                            pause(DOWNLOAD_THREADS.keyAt(q));
                         }
                     }
                     break;
@@ -188,8 +212,9 @@ public class DownloadService extends Service implements DownloadListener {
                     if (intent.hasExtra(EXTRAL_DOWNLOAD_ID)) {
                         resume(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     } else {
-                        for (int id : DOWNLOAD_QUEUE) {
-                            if (DOWNLOADS.get(id).getStatus() == DlState.STATUS_PAUSED_USER) resume(id);
+                        SparseArray<DlState> downloads = DOWNLOADS.snapshot();
+                        for (int q = 0; q < downloads.size(); q++) {
+                            if (downloads.valueAt(q).getStatus() == DlState.STATUS_PAUSED_USER) resume(downloads.keyAt(q));
                         }
                     }
                     break;
@@ -197,11 +222,9 @@ public class DownloadService extends Service implements DownloadListener {
                     if (intent.hasExtra(EXTRAL_DOWNLOAD_ID)) {
                         cancel(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     } else {
-                        for (int id : DOWNLOAD_QUEUE) {
-                            int status = DOWNLOADS.get(id).getStatus();
-                            if (status != DlState.STATUS_CANCELLED_USER &&
-                                    status != DlState.STATUS_COMPLETED &&
-                                    status != DlState.STATUS_FAILED) cancel(id);
+                        SparseArray<DlState> downloads = DOWNLOADS.snapshot();
+                        for (int q = 0; q < downloads.size(); q++) {
+                            cancel(downloads.keyAt(q));
                         }
                     }
                     break;
@@ -210,6 +233,10 @@ public class DownloadService extends Service implements DownloadListener {
                         retry(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     }
                     break;
+                case CMD_RETRY_DUE:
+                    retries.takeDue();
+                    tryStartQueue();
+                    break;
                 }
             }
         }
@@ -227,6 +254,12 @@ public class DownloadService extends Service implements DownloadListener {
         nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
         cfg = Config.getInstance(getApplicationContext());
+        netMonitor = NetworkMonitor.getInstance(this);
+        scheduler = new DownloadScheduler(cfg);
+        RateGovernor.setLimit(cfg.getMaxDlRate());
+        retries = new RetryScheduler(this);
+        stateLog = new StateLog(getFileStreamPath(STATE_LOG_NAME));
+        persister = new StatePersister(stateLog);
 
         loadState();
 
@@ -249,9 +282,15 @@ public class DownloadService extends Service implements DownloadListener {
         for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
             DownloadTask task = DOWNLOAD_THREADS.valueAt(q);
             DlState state = task.getState();
-            state.setStatus(DlState.STATUS_PAUSED_SYSTEM);
+            int status = state.getStatus();
+            if (status == DlState.STATUS_RUNNING || status == DlState.STATUS_STARTING) {
+                state.compareAndSetStatus(status, DlState.STATUS_PAUSED_SYSTEM);
+            }
             task.pause();
+            saveState(state);
         }
+        persister.close(Config.STATE_PERSIST_FLUSH_TIMEOUT);
+        events.kill();
 
         super.onDestroy();
     }
@@ -259,20 +298,19 @@ public class DownloadService extends Service implements DownloadListener {
     @Override
     public void onStart(DlState state) {
         wakeLock.acquire();
-        state.setStatus(DlState.STATUS_RUNNING);
+        state.updateStatus(DlState.STATUS_RUNNING);
         updateStatusNotif(true);
+        stateChanged(state);
     }
 
     @Override
     public int onCheckContinue(DlState state) {
-        if (isNetStateDirty) {
-            int netCheck = checkNetwork(state);
-            if (netCheck == NETWORK_NOT_CONNECTED) {
-                return STOP_NO_DATA;
-            }
-            if (netCheck == NETWORK_NO_WIFI || netCheck == NETWORK_SIZE_EXCEEDED) {
-                return STOP_NO_WIFI;
-            }
+        int netCheck = checkNetwork(state);
+        if (netCheck == NETWORK_NOT_CONNECTED) {
+            return STOP_NO_DATA;
+        }
+        if (netCheck == NETWORK_NO_WIFI || netCheck == NETWORK_SIZE_EXCEEDED) {
+            return STOP_NO_WIFI;
         }
 
         return 0;
@@ -281,75 +319,123 @@ public class DownloadService extends Service implements DownloadListener {
     @Override
     public void onLengthReceived(DlState state) {
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state);
     }
 
     @Override
     public void onProgress(DlState state) {
+        scheduler.onProgress(state);
         updateStatusNotif(false);
-        saveState(false);
+        saveProgress(state);
     }
 
     @Override
     public void onPause(DlState state) {
         updateStatusNotif(true);
         cleanupFinish(state);
-        saveState(true);
+        saveState(state);
+        tryStartQueue();
     }
 
     @Override
     public void onFinish(DlState state, DownloadResult result) {
         if (result != DownloadResult.CANCELLED && result != DownloadResult.FINISHED && state.getStatus() != DlState.STATUS_FAILED) {
-            DOWNLOAD_QUEUE.add(state.getId());
+            scheduler.add(state);
         }
+        if (result == DownloadResult.RETRY_LATER) retries.schedule(state);
         updateStatusNotif(true);
         cleanupFinish(state);
-        saveState(true);
+        saveState(state);
+        tryStartQueue();
     }
 
-    private void saveState(boolean force) {
-        if (System.currentTimeMillis() < minNextWriteUpdate && !force) return;
-        minNextWriteUpdate = System.currentTimeMillis() + WRITE_STATE_DELAY;
+    /**
+     * Queues a write of everything about state, plus the queue, since either
+     * may have changed, and tells listeners.
+     */
+    private void saveState(DlState state) {
+        persister.saveState(state, scheduler.getQueuedIds());
+        stateChanged(state);
+    }
 
-        ObjectOutputStream os = null;
-        try {
-            os = new ObjectOutputStream(openFileOutput(STATE_STORE_NAME, 0));
-            os.writeInt(DOWNLOADS.size());
-            for (int q = 0; q < DOWNLOADS.size(); q++) {
-                os.writeInt(DOWNLOADS.keyAt(q));
-                os.writeObject(DOWNLOADS.valueAt(q));
-            }
-            os.writeObject(DOWNLOAD_QUEUE);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (os != null) {
-                try {
-                    os.flush();
-                    os.close();
-                } catch (IOException e) { }
-            }
-        }
+    private void saveProgress(DlState state) {
+        persister.saveProgress(state);
+        markChanged(state);
+        events.progressChanged(state);
+    }
+
+    /**
+     * Stamps state with a new change sequence and tells listeners.
+     */
+    private void stateChanged(DlState state) {
+        markChanged(state);
+        events.stateChanged(state);
+    }
+
+    /**
+     * Stamping and reading happen under one lock, so once a sequence number
+     * has been read every change numbered up to it is visible.
+     */
+    private synchronized void markChanged(DlState state) {
+        state.setChangeSeq(++changeSeq);
+    }
+
+    private synchronized long getChangeSeq() {
+        return changeSeq;
     }
 
-    @SuppressWarnings("unchecked")
     private void loadState() {
         DOWNLOADS.clear();
-        DOWNLOAD_QUEUE.clear();
+        scheduler.clear();
+        retries.clear();
         DOWNLOAD_THREADS.clear();
 
+        SparseArray<DlState> downloads = new SparseArray<DlState>();
+        ArrayList<Integer> queue = new ArrayList<Integer>();
+        boolean migrating = false;
+        if (!stateLog.load(downloads, queue)) {
+            if (!loadLegacyState(downloads, queue)) return;
+            migrating = true;
+        }
+
+        for (int q = 0; q < downloads.size(); q++) {
+            markChanged(downloads.valueAt(q));
+        }
+        DOWNLOADS.replaceAll(downloads);
+        for (int id : queue) {
+            DlState state = downloads.get(id);
+            if (state == null) continue;
+            scheduler.add(state);
+            if (state.getStatus() == DlState.STATUS_PAUSED_RETRY) retries.schedule(state);
+        }
+
+        // compacting also drops anything a crash left torn at the end of the log
+        persister.replaceAll(downloads, queue);
+        if (migrating && persister.flush(Config.STATE_PERSIST_FLUSH_TIMEOUT) && stateLog.exists()) {
+            deleteFile(LEGACY_STATE_STORE_NAME);
+        }
+    }
+
+    /**
+     * Reads the single serialized blob older versions kept all state in.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean loadLegacyState(SparseArray<DlState> downloads, ArrayList<Integer> queue) {
         ObjectInputStream is = null;
         try {
-            is = new ObjectInputStream(openFileInput(STATE_STORE_NAME));
+            is = new ObjectInputStream(openFileInput(LEGACY_STATE_STORE_NAME));
             int nStates = is.readInt();
             for (int q = 0; q < nStates; q++) {
-                DOWNLOADS.put(is.readInt(), (DlState) is.readObject());
+                downloads.put(is.readInt(), (DlState) is.readObject());
             }
-            DOWNLOAD_QUEUE.addAll((ArrayList<Integer>) is.readObject());
+            queue.addAll((ArrayList<Integer>) is.readObject());
+            Log.v(Config.LOG_TAG + "Service", "migrated " + nStates + " downloads from " + LEGACY_STATE_STORE_NAME);
+            return true;
         } catch(FileNotFoundException e) {
-            return;
+            return false;
         } catch (Exception e) {
             e.printStackTrace();
+            return downloads.size() != 0;
         } finally {
             if (is != null) {
                 try { is.close(); }
@@ -366,41 +452,116 @@ public class DownloadService extends Service implements DownloadListener {
         return queueDownload(new DlState(info));
     }
 
-    private int queueDownload(DlState state) {
-        int id = state.hashCode();
-        Log.v(Config.LOG_TAG + "Service", "queuing download id=" + id);
-        state.setId(id);
-        state.setStatus(DlState.STATUS_QUEUED);
-        DOWNLOADS.put(id, state);
-        DOWNLOAD_QUEUE.add(id);
-        saveState(true);
-        tryStartQueue();
-        return id;
+    /**
+     * May be called from any thread; the download is visible right away and
+     * gets scheduled on the main thread.
+     *
+     * Ids come from what is downloaded (see {@link DlState#getContentKey}),
+     * so queuing a file we already have a download for returns that one
+     * instead of starting a second into the same file.
+     */
+    private int queueDownload(final DlState state) {
+        final DlState existing;
+        synchronized (QUEUE_LOCK) {
+            existing = findDownload(state.getContentKey());
+            if (existing == null) {
+                int id = state.getContentId();
+                // another file hashing to the same id takes the next free one
+                while (DOWNLOADS.get(id) != null) id = id == Integer.MAX_VALUE ? 1 : id + 1;
+                state.setId(id);
+                state.setStatus(DlState.STATUS_QUEUED);
+                DOWNLOADS.put(id, state);
+            }
+        }
+
+        if (existing != null) {
+            Log.v(Config.LOG_TAG + "Service", "already have download id=" + existing.getId());
+            runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    requeue(existing);
+                }
+            });
+            return existing.getId();
+        }
+
+        Log.v(Config.LOG_TAG + "Service", "queuing download id=" + state.getId());
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.add(state);
+                saveState(state);
+                tryStartQueue();
+            }
+        });
+        return state.getId();
     }
 
-    private void tryStartQueue() {
-        //TODO if (cfg.getNoParallelDl() && DOWNLOAD_THREADS.size() != 0) return;
-        if (DOWNLOAD_THREADS.size() != 0) return;
+    /**
+     * @return the download of the file with key, or null if there's none
+     */
+    private DlState findDownload(String key) {
+        SparseArray<DlState> downloads = DOWNLOADS.snapshot();
+        for (int q = 0; q < downloads.size(); q++) {
+            DlState state = downloads.valueAt(q);
+            if (key.equals(state.getContentKey())) return state;
+        }
+        return null;
+    }
 
-        for (Iterator<Integer> it = DOWNLOAD_QUEUE.iterator(); it.hasNext(); ) {
-            int id = it.next();
-            DlState state = getState(id);
+    /**
+     * Gets a download going again when its file is queued a second time,
+     * unless it's already under way. A finished one goes through the task
+     * again too: files are preallocated, so only the md5 says the file is
+     * still all there, and the task checks that off the main thread before
+     * fetching anything. Main thread only.
+     */
+    private void requeue(DlState state) {
+        // running, or a cancelled task still winding down
+        if (DOWNLOAD_THREADS.get(state.getId()) != null) return;
+
+        switch (state.getStatus()) {
+        case DlState.STATUS_PAUSED_USER:
+            resume(state.getId());
+            break;
+        case DlState.STATUS_COMPLETED:
+        case DlState.STATUS_CANCELLED_USER:
+        case DlState.STATUS_FAILED:
+            retry(state.getId());
+            break;
+        }
+    }
+
+    private void runOnMain(Runnable r) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+        } else {
+            MAIN_HANDLER.post(r);
+        }
+    }
+
+    private void tryStartQueue() {
+        long now = System.currentTimeMillis();
+        for (DlState state : scheduler.getQueued()) {
             int status = state.getStatus();
             if (status == DlState.STATUS_PAUSED_USER || status == DlState.STATUS_CANCELLED_USER) continue;
+            // RetryScheduler wakes us when it's time
+            if (status == DlState.STATUS_PAUSED_RETRY && state.getRetryAt() > now) continue;
+            if (!scheduler.canStart(state, DOWNLOAD_THREADS.size())) continue;
 
             int netCheck = checkNetwork(state);
             if (netCheck == NETWORK_OK) {
+                if (!scheduler.onStarted(state)) continue;
+                retries.remove(state);
+
                 state.setStatus(DlState.STATUS_STARTING);
                 DownloadTask task = new DownloadTask(state, this, this);
-                DOWNLOAD_THREADS.put(id, task);
+                DOWNLOAD_THREADS.put(state.getId(), task);
 
                 updateStatusNotif(true);
+                stateChanged(state);
 
-                task.execute();
-                it.remove();
-
-                //TODO if (cfg.getNoParallelDl()) break;
-                break;
+                TaskExecutors.executeDownload(task);
             } else {
                 switch (netCheck) {
                 case NETWORK_NO_WIFI:
@@ -415,11 +576,13 @@ public class DownloadService extends Service implements DownloadListener {
                 }
 
                 updateStatusNotif(true);
+                stateChanged(state);
             }
         }
     }
 
     private void cleanupFinish(DlState state) {
+        scheduler.onStopped(state);
         DOWNLOAD_THREADS.delete(state.getId());
         if (DOWNLOAD_THREADS.size() == 0) {
             //stopForeground(true);
@@ -438,10 +601,10 @@ public class DownloadService extends Service implements DownloadListener {
         if (DOWNLOAD_THREADS.size() <= 1) {
             DlState state = null;
             if (DOWNLOAD_THREADS.size() == 0) {
-                if (DOWNLOAD_QUEUE.size() == 0) {
-                    state = DOWNLOADS.valueAt(DOWNLOADS.size() - 1);
-                } else {
-                    state = getState(DOWNLOAD_QUEUE.get(0));
+                state = scheduler.peek();
+                if (state == null) {
+                    SparseArray<DlState> downloads = DOWNLOADS.snapshot();
+                    state = downloads.valueAt(downloads.size() - 1);
                 }
             } else {
                 state = DOWNLOAD_THREADS.valueAt(0).getState();
@@ -558,7 +721,38 @@ public class DownloadService extends Service implements DownloadListener {
                 builder.setContentText(getString(subtext));
             }
         } else {
-            //TODO multiple download notif
+            long totalSize = 0;
+            long totalDone = 0;
+            boolean sizesKnown = true;
+            for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
+                DlState state = DOWNLOAD_THREADS.valueAt(q).getState();
+                if (state.getTotalSize() == 0) sizesKnown = false;
+                totalSize += state.getTotalSize();
+                totalDone += state.getTotalDone();
+            }
+
+            builder.setContentTitle(getString(R.string.notif_downloading));
+            builder.setTicker(getString(R.string.notif_downloading));
+            builder.setContentText(getString(R.string.notif_downloading_multi, DOWNLOAD_THREADS.size()));
+            builder.setOngoing(true);
+            builder.setSmallIcon(android.R.drawable.stat_sys_download);
+
+            if (sizesKnown) {
+                // scaled down so several ROMs together can't overflow the int progress
+                builder.setProgress(1000, (int) (1000 * totalDone / totalSize), false);
+                builder.setContentInfo(getString(R.string.downloads_pct_progress, Math.round(100.0f * totalDone / totalSize)));
+            } else {
+                builder.setProgress(0, 0, true);
+            }
+
+            Intent i = new Intent(this, DownloadsActivity.class);
+            i.putExtra(DownloadsActivity.EXTRA_GOTO_TYPE, DownloadsActivity.GOTO_TYPE_PENDING);
+            builder.setContentIntent(PendingIntent.getActivity(this, 2, i, 0));
+
+            i = new Intent(this, DownloadReceiver.class);
+            i.setAction(SERVICE_ACTION);
+            i.putExtra(EXTRA_CMD, CMD_PAUSE);
+            builder.addAction(0, getString(R.string.notif_pause), PendingIntent.getBroadcast(this, 9, i, PendingIntent.FLAG_UPDATE_CURRENT));
         }
 
         nm.notify(Config.DL_STATUS_NOTIF_ID, builder.build());
@@ -567,13 +761,11 @@ public class DownloadService extends Service implements DownloadListener {
     public void cancel(int id) {
         DlState state = DOWNLOADS.get(id);
         if (state == null) return;
-        if (state.getStatus() == DlState.STATUS_CANCELLED_USER ||
-                state.getStatus() == DlState.STATUS_COMPLETED ||
-                state.getStatus() == DlState.STATUS_FAILED) return;
-        state.setStatus(DlState.STATUS_CANCELLED_USER);
+        if (!state.markCancelled()) return;
+        retries.remove(state);
 
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state);
 
         DownloadTask task = DOWNLOAD_THREADS.get(id);
         if (task == null) return;
@@ -583,11 +775,10 @@ public class DownloadService extends Service implements DownloadListener {
     public void pause(int id) {
         DlState state = DOWNLOADS.get(id);
         if (state == null) return;
-        if (state.getStatus() != DlState.STATUS_RUNNING) return;
-        state.setStatus(DlState.STATUS_PAUSED_USER);
+        if (!state.compareAndSetStatus(DlState.STATUS_RUNNING, DlState.STATUS_PAUSED_USER)) return;
 
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state);
 
         DownloadTask task = DOWNLOAD_THREADS.get(id);
         if (task == null) return;
@@ -597,12 +788,11 @@ public class DownloadService extends Service implements DownloadListener {
     public void resume(int id) {
         DlState state = DOWNLOADS.get(id);
         if (state == null) return;
-        if (state.getStatus() != DlState.STATUS_PAUSED_USER) return;
-        state.setStatus(DlState.STATUS_QUEUED);
-        DOWNLOAD_QUEUE.add(id);
+        if (!state.compareAndSetStatus(DlState.STATUS_PAUSED_USER, DlState.STATUS_QUEUED)) return;
+        scheduler.add(state);
 
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state);
 
         tryStartQueue();
     }
@@ -615,16 +805,87 @@ public class DownloadService extends Service implements DownloadListener {
         if (status == DlState.STATUS_CANCELLED_USER ||
                 status == DlState.STATUS_COMPLETED ||
                 status == DlState.STATUS_FAILED) {
+            if (!state.compareAndSetStatus(status, DlState.STATUS_QUEUED)) return;
             state.resetState();
-            DOWNLOAD_QUEUE.add(id);
+            scheduler.add(state);
 
             updateStatusNotif(true);
-            saveState(true);
+            saveState(state);
 
             tryStartQueue();
         }
     }
 
+    /**
+     * Changes where a download stands in the queue. Running downloads keep
+     * running; the new priority applies the next time one is picked.
+     */
+    public void setPriority(int id, int priority) {
+        DlState state = DOWNLOADS.get(id);
+        if (state == null) return;
+        state.setPriority(priority);
+
+        saveState(state);
+        tryStartQueue();
+    }
+
+    /**
+     * Changes a download's share of the rate limit, at once if it's running.
+     */
+    public void setWeight(int id, int weight) {
+        DlState state = DOWNLOADS.get(id);
+        if (state == null) return;
+        state.setWeight(weight);
+        RateGovernor.setWeight(id, state.getWeight());
+
+        saveState(state);
+    }
+
+    /**
+     * Caps how fast all downloads together may go, running ones included.
+     *
+     * @param bytesPerSec 0 for no limit
+     */
+    public void setMaxRate(long bytesPerSec) {
+        cfg.setMaxDlRate(bytesPerSec);
+        RateGovernor.setLimit(bytesPerSec);
+    }
+
+    /**
+     * Changes how many downloads may run at once, up to
+     * {@link Config#DL_EXECUTOR_THREADS}. Lowering it lets running downloads
+     * finish rather than pausing them.
+     */
+    public void setMaxParallel(int max) {
+        cfg.setMaxParallelDl(Math.max(1, Math.min(max, Config.DL_EXECUTOR_THREADS)));
+        tryStartQueue();
+    }
+
+    /**
+     * Changes how many connections all downloads together may hold to one host.
+     */
+    public void setMaxHostConnections(int max) {
+        scheduler.setMaxHostConnections(max);
+        tryStartQueue();
+    }
+
+    /**
+     * @param order one of the Config.DL_ORDER_* constants
+     */
+    public void setOrder(int order) {
+        if (order != Config.DL_ORDER_FIFO && order != Config.DL_ORDER_KERNEL_FIRST &&
+                order != Config.DL_ORDER_SMALLEST_FIRST) return;
+        cfg.setDlOrder(order);
+        tryStartQueue();
+    }
+
+    /**
+     * @return wall clock time of the next retry alarm, 0 if no download is waiting to retry
+     */
+    public long getNextRetryTime() {
+        return retries.getNextWake();
+    }
+
     public int getStatus(int id) {
         return getState(id).getStatus();
     }
@@ -653,30 +914,57 @@ public class DownloadService extends Service implements DownloadListener {
 
     public void getDownloads(List<DlState> list, int filter) {
         list.clear();
-        for (int q = 0; q < DOWNLOADS.size(); q++) {
-            DlState state = DOWNLOADS.valueAt(q);
+        SparseArray<DlState> downloads = DOWNLOADS.snapshot();
+        for (int q = 0; q < downloads.size(); q++) {
+            DlState state = downloads.valueAt(q);
             if (state.matchesFilter(filter)) list.add(state);
         }
     }
 
-    @TargetApi(11)
-    private int checkNetwork(DlState state) {
-        isNetStateDirty = false;
+    /**
+     * @return the downloads matching filter, packed for {@link DlSnapshot}
+     */
+    public long[] getSnapshot(int filter) {
+        // read first, so anything changing while we build this is newer than it
+        long seq = getChangeSeq();
+        ArrayList<DlState> list = new ArrayList<DlState>();
+        getDownloads(list, filter);
+        return DlSnapshot.pack(seq, list, filter);
+    }
 
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        NetworkInfo ni = cm.getActiveNetworkInfo();
+    /**
+     * Everything that changed after seq: downloads matching filter are
+     * added or changed, the rest are flagged as removed from the filter.
+     *
+     * @return packed for {@link DlSnapshot}; its sequence is what to pass next time
+     */
+    public long[] getDownloadsSince(long seq, int filter) {
+        long nextSeq = getChangeSeq();
+        ArrayList<DlState> list = new ArrayList<DlState>();
+        SparseArray<DlState> downloads = DOWNLOADS.snapshot();
+        for (int q = 0; q < downloads.size(); q++) {
+            DlState state = downloads.valueAt(q);
+            if (state.getChangeSeq() > seq) list.add(state);
+        }
+        return DlSnapshot.pack(nextSeq, list, filter);
+    }
 
-        if (ni == null || !ni.isConnectedOrConnecting()) return NETWORK_NOT_CONNECTED;
-        if (cfg.getWifiOnlyDl() && ni.getType() != ConnectivityManager.TYPE_WIFI) return NETWORK_NO_WIFI;
+    /**
+     * Only reads the cached {@link NetworkMonitor} state, so it's cheap
+     * enough for download threads to call.
+     */
+    private int checkNetwork(DlState state) {
+        NetState net = netMonitor.getState();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            if (ni.getType() != ConnectivityManager.TYPE_WIFI) {
-                Long maxMobileSize = DownloadManager.getMaxBytesOverMobile(this);
-                if (state.getTotalSize() > 0 &&
-                        maxMobileSize != null &&
-                        state.getTotalSize() > maxMobileSize)
-                    return NETWORK_SIZE_EXCEEDED;
-            }
+        if (!net.isConnectedOrConnecting()) return NETWORK_NOT_CONNECTED;
+        if (cfg.getWifiOnlyDl() && !net.isWifi()) return NETWORK_NO_WIFI;
+
+        if (!net.isWifi()) {
+            long maxMobileSize = net.getMaxBytesOverMobile();
+            if (state.getTotalSize() > 0 &&
+                    maxMobileSize > 0 &&
+                    state.getTotalSize() > maxMobileSize)
+                return NETWORK_SIZE_EXCEEDED;
         }
 
         return NETWORK_OK;
@@ -700,6 +988,92 @@ public class DownloadService extends Service implements DownloadListener {
             return service.get().queueDownload(info);
         }
 
+        @Override
+        public void setPriority(final int id, final int priority) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.setPriority(id, priority);
+                }
+            });
+        }
+
+        @Override
+        public void setWeight(final int id, final int weight) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.setWeight(id, weight);
+                }
+            });
+        }
+
+        @Override
+        public void setMaxRate(final long bytesPerSec) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.setMaxRate(bytesPerSec);
+                }
+            });
+        }
+
+        @Override
+        public long getMaxRate() {
+            return RateGovernor.getLimit();
+        }
+
+        @Override
+        public void setMaxParallel(final int max) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.setMaxParallel(max);
+                }
+            });
+        }
+
+        @Override
+        public int getMaxParallel() {
+            return service.get().cfg.getMaxParallelDl();
+        }
+
+        @Override
+        public void setMaxHostConnections(final int max) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.setMaxHostConnections(max);
+                }
+            });
+        }
+
+        @Override
+        public int getMaxHostConnections() {
+            return service.get().cfg.getMaxHostConnections();
+        }
+
+        @Override
+        public void setOrder(final int order) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.setOrder(order);
+                }
+            });
+        }
+
+        @Override
+        public int getOrder() {
+            return service.get().cfg.getDlOrder();
+        }
+
         @Override
         public int getStatus(int id) {
             return service.get().getStatus(id);
@@ -716,23 +1090,47 @@ public class DownloadService extends Service implements DownloadListener {
         }
 
         @Override
-        public void cancel(int id) {
-            service.get().cancel(id);
+        public void cancel(final int id) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.cancel(id);
+                }
+            });
         }
 
         @Override
-        public void pause(int id) {
-            service.get().pause(id);
+        public void pause(final int id) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.pause(id);
+                }
+            });
         }
 
         @Override
-        public void resume(int id) {
-            service.get().resume(id);
+        public void resume(final int id) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.resume(id);
+                }
+            });
         }
 
         @Override
-        public void retry(int id) {
-            service.get().retry(id);
+        public void retry(final int id) {
+            final DownloadService svc = service.get();
+            svc.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    svc.retry(id);
+                }
+            });
         }
 
         @Override
@@ -745,10 +1143,30 @@ public class DownloadService extends Service implements DownloadListener {
             service.get().getDownloads(list, filter);
         }
 
+        @Override
+        public long[] getSnapshot(int filter) {
+            return service.get().getSnapshot(filter);
+        }
+
+        @Override
+        public long[] getDownloadsSince(long seq, int filter) {
+            return service.get().getDownloadsSince(seq, filter);
+        }
+
         @Override
         public DlState getDownload(int id) {
             return service.get().getDownload(id);
         }
+
+        @Override
+        public void registerListener(IDownloadListener listener) {
+            service.get().events.register(listener);
+        }
+
+        @Override
+        public void unregisterListener(IDownloadListener listener) {
+            service.get().events.unregister(listener);
+        }
     }
 
     public static class BindUtil {
@@ -50,6 +50,7 @@ import com.actionbarsherlock.view.MenuItem;
 import com.otaupdater.DownloadService.BindUtil;
 import com.otaupdater.DownloadService.BindUtil.Token;
 import com.otaupdater.utils.Config;
+import com.otaupdater.utils.DlSnapshot;
 import com.otaupdater.utils.DlState;
 import com.otaupdater.utils.DownloadDialogCallback;
 import com.otaupdater.utils.Recovery;
@@ -71,12 +72,16 @@ public class DownloadsActivity extends SherlockListActivity implements
     private final ArrayList<Dialog> dlgs = new ArrayList<Dialog>();
 
     private Integer downloadDlgDlID = null;
+    /** change sequence the download list is synced to, -1 if it needs a full reload */
+    private long syncedSeq = -1;
     private IDownloadService service = null;
     private Token token;
 
     private int state = 0;
 
-    private static final int REFRESH_DELAY = 1000;
+    private static final int MSG_PROGRESS = 1;
+    private static final int MSG_STATUS = 2;
+
     private final Handler REFRESH_HANDLER = new RefreshHandler(this);
     private static class RefreshHandler extends Handler {
         private WeakReference<DownloadsActivity> downloadsAct;
@@ -87,14 +92,50 @@ public class DownloadsActivity extends SherlockListActivity implements
 
         @Override
         public void handleMessage(Message msg) {
-            downloadsAct.get().updateFileList();
+            DownloadsActivity act = downloadsAct.get();
+            if (act == null) return;
+            switch (msg.what) {
+            case MSG_PROGRESS:
+                long[] sizes = (long[]) msg.obj;
+                act.onDownloadProgress(msg.arg1, sizes[0], sizes[1]);
+                break;
+            case MSG_STATUS:
+                act.onDownloadStatusChanged(msg.arg1, msg.arg2);
+                break;
+            }
         }
     };
 
+    private final IDownloadListener LISTENER = new HandlerListener(REFRESH_HANDLER);
+
+    /**
+     * Hands service events to a handler, since they arrive on binder threads.
+     */
+    private static class HandlerListener extends IDownloadListener.Stub {
+        private final Handler handler;
+
+        public HandlerListener(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void onProgress(int id, long totalSize, long totalDone) {
+            handler.obtainMessage(MSG_PROGRESS, id, 0, new long[] { totalSize, totalDone }).sendToTarget();
+        }
+
+        @Override
+        public void onStatusChanged(int id, int status) {
+            handler.obtainMessage(MSG_STATUS, id, status).sendToTarget();
+        }
+    }
+
     @Override
     public void onServiceConnected(ComponentName name, IBinder stub) {
         service = IDownloadService.Stub.asInterface(stub);
         updateFileList();
+        try {
+            service.registerListener(LISTENER);
+        } catch (RemoteException e) { }
 
         if (downloadDlgDlID != null) DownloadsActivity.showDownloadingDialog(this, service, token, downloadDlgDlID, this);
     }
@@ -143,11 +184,22 @@ public class DownloadsActivity extends SherlockListActivity implements
     @Override
     protected void onResume() {
         super.onResume();
-        updateFileList();
+        // listener was off while paused, catch up on what we missed
+        syncDownloads();
+        if (service != null) {
+            try {
+                service.registerListener(LISTENER);
+            } catch (RemoteException e) { }
+        }
     }
 
     @Override
     protected void onPause() {
+        if (service != null) {
+            try {
+                service.unregisterListener(LISTENER);
+            } catch (RemoteException e) { }
+        }
         REFRESH_HANDLER.removeCallbacksAndMessages(null);
         for (Dialog dlg : dlgs) {
             if (dlg.isShowing()) dlg.dismiss();
@@ -226,17 +278,27 @@ public class DownloadsActivity extends SherlockListActivity implements
 
     private void updateFileList() {
         if (state < 2) {
-            dlList.clear();
-            if (service != null) {
+            syncedSeq = -1;
+            if (service == null) {
+                dlList.clear();
+            } else {
                 try {
-                    int filter = 0;
-                    if (state == 0) {
-                        filter = DlState.FILTER_ACTIVE | DlState.FILTER_PAUSED;
-                    } else if (state == 1) {
-                        filter = DlState.FILTER_COMPLETED | DlState.FILTER_CANCELLED | DlState.FILTER_FAILED;
+                    // only downloads we haven't seen yet need their full state
+                    DlSnapshot snapshot = new DlSnapshot(service.getSnapshot(getFilter()));
+                    ArrayList<DlState> downloads = new ArrayList<DlState>(snapshot.size());
+                    for (int q = 0; q < snapshot.size(); q++) {
+                        DlState dlState = findDownload(snapshot.getId(q));
+                        if (dlState == null) dlState = service.getDownload(snapshot.getId(q));
+                        if (dlState == null) continue;
+                        snapshot.applyTo(q, dlState);
+                        downloads.add(dlState);
                     }
-                    service.getDownloadsFilt(dlList, filter);
-                } catch (RemoteException e) { }
+                    dlList.clear();
+                    dlList.addAll(downloads);
+                    syncedSeq = snapshot.getSeq();
+                } catch (RemoteException e) {
+                    dlList.clear();
+                }
             }
 
             if (dlAdapter == null) {
@@ -250,8 +312,6 @@ public class DownloadsActivity extends SherlockListActivity implements
             } else {
                 dlAdapter.notifyDataSetChanged();
             }
-
-            REFRESH_HANDLER.sendMessageDelayed(REFRESH_HANDLER.obtainMessage(), REFRESH_DELAY);
         } else {
             File dir = state == 2 ? Config.ROM_DL_PATH_FILE : Config.KERNEL_DL_PATH_FILE;
             File[] files = dir.listFiles();
@@ -275,11 +335,95 @@ public class DownloadsActivity extends SherlockListActivity implements
             } else {
                 fileAdapter.notifyDataSetChanged();
             }
+        }
+    }
+
+    private int getFilter() {
+        if (state == 0) return DlState.FILTER_ACTIVE | DlState.FILTER_PAUSED;
+        if (state == 1) return DlState.FILTER_COMPLETED | DlState.FILTER_CANCELLED | DlState.FILTER_FAILED;
+        return DlState.FILTER_ALL;
+    }
+
+    private DlState findDownload(int id) {
+        for (DlState dlState : dlList) {
+            if (dlState.getId() == id) return dlState;
+        }
+        return null;
+    }
+
+    /**
+     * Brings the download list up to date with only what changed since it
+     * was last synced, falling back to a full reload when there's no base.
+     */
+    private void syncDownloads() {
+        if (state >= 2 || dlAdapter == null || service == null || syncedSeq < 0) {
+            updateFileList();
+            return;
+        }
+
+        DlSnapshot changes;
+        try {
+            changes = new DlSnapshot(service.getDownloadsSince(syncedSeq, getFilter()));
+        } catch (RemoteException e) {
+            return;
+        }
+
+        boolean structural = false;
+        ArrayList<Integer> changedRows = new ArrayList<Integer>();
+        for (int q = 0; q < changes.size(); q++) {
+            DlState dlState = findDownload(changes.getId(q));
+            if (changes.isRemoved(q)) {
+                if (dlState != null) {
+                    dlList.remove(dlState);
+                    structural = true;
+                }
+                continue;
+            }
+
+            if (dlState == null) {
+                try {
+                    dlState = service.getDownload(changes.getId(q));
+                } catch (RemoteException e) { }
+                if (dlState == null) continue;
+                dlList.add(dlState);
+                structural = true;
+            }
+            changes.applyTo(q, dlState);
+            changedRows.add(dlList.indexOf(dlState));
+        }
+        syncedSeq = changes.getSeq();
 
-            REFRESH_HANDLER.removeCallbacksAndMessages(null);
+        if (structural) {
+            dlAdapter.notifyDataSetChanged();
+        } else {
+            for (int position : changedRows) updateRow(position);
         }
     }
 
+    /**
+     * Rebinds just the row at position, if it's on screen.
+     */
+    private void updateRow(int position) {
+        ListView listView = getListView();
+        View row = listView.getChildAt(position - listView.getFirstVisiblePosition());
+        if (row != null) dlAdapter.getView(position, row, listView);
+    }
+
+    private void onDownloadProgress(int id, long totalSize, long totalDone) {
+        if (state >= 2 || dlAdapter == null) return;
+        DlState dlState = findDownload(id);
+        if (dlState == null) return;
+        dlState.setTotalSize(totalSize);
+        dlState.setTotalDone(totalDone);
+        updateRow(dlList.indexOf(dlState));
+    }
+
+    private void onDownloadStatusChanged(int id, int status) {
+        if (state >= 2 || dlAdapter == null) return;
+        // a new status may move it in or out of this list, which the sync sorts out
+        syncDownloads();
+    }
+
     @Override
     public void onDialogShown(Dialog dlg) {
         dlgs.add(dlg);
@@ -472,15 +616,22 @@ public class DownloadsActivity extends SherlockListActivity implements
 
         final AlertDialog dlg = builder.create();
 
+        // kept current by the listener, so the buttons don't need to ask the service
+        final DlState state = initState;
         final Handler REFRESH_HANDLER = new Handler() {
             @Override
             public void handleMessage(Message msg) {
-                DlState state = null;
-                try {
-                    state = service.getDownload(dlID);
-                } catch (RemoteException e) { }
-
-                if (state == null) return;
+                if (msg.arg1 != dlID) return;
+                switch (msg.what) {
+                case MSG_PROGRESS:
+                    long[] sizes = (long[]) msg.obj;
+                    state.setTotalSize(sizes[0]);
+                    state.setTotalDone(sizes[1]);
+                    break;
+                case MSG_STATUS:
+                    state.setStatus(msg.arg2);
+                    break;
+                }
 
                 int status = state.getStatus();
 
@@ -568,10 +719,9 @@ public class DownloadsActivity extends SherlockListActivity implements
                     subtextView.setText(ctx.getString(subtext));
                     subtextView.setVisibility(View.VISIBLE);
                 }
-
-                this.sendMessageDelayed(this.obtainMessage(), REFRESH_DELAY);
             }
         };
+        final IDownloadListener listener = new HandlerListener(REFRESH_HANDLER);
 
         dlg.setOnShowListener(new DialogInterface.OnShowListener() {
             @Override
@@ -579,13 +729,6 @@ public class DownloadsActivity extends SherlockListActivity implements
                 dlg.getButton(DialogInterface.BUTTON_NEUTRAL).setOnClickListener(new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        DlState state = null;
-                        try {
-                            state = service.getDownload(dlID);
-                        } catch (RemoteException e) { }
-
-                        if (state == null) return;
-
                         int status = state.getStatus();
                         if (status == DlState.STATUS_RUNNING) {
                             try {
@@ -601,15 +744,8 @@ public class DownloadsActivity extends SherlockListActivity implements
                 dlg.getButton(DialogInterface.BUTTON_NEGATIVE).setOnClickListener(new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        DlState state = null;
                         String path = null;
 
-                        try {
-                            state = service.getDownload(dlID);
-                        } catch (RemoteException e) { }
-
-                        if (state == null) return;
-
                         int status = state.getStatus();
                         if (status == DlState.STATUS_COMPLETED) {
                             dlg.dismiss();
@@ -632,7 +768,10 @@ public class DownloadsActivity extends SherlockListActivity implements
 
                 dlg.getButton(DialogInterface.BUTTON_NEUTRAL).setVisibility(initStatus == DlState.STATUS_RUNNING || initStatus == DlState.STATUS_PAUSED_USER ? View.VISIBLE : View.GONE);
 
-                REFRESH_HANDLER.sendMessage(REFRESH_HANDLER.obtainMessage());
+                REFRESH_HANDLER.obtainMessage(0, dlID, 0).sendToTarget();
+                try {
+                    service.registerListener(listener);
+                } catch (RemoteException e) { }
                 if (callback != null) {
                     callback.onDialogShown(dlg);
                     callback.onDownloadDialogShown(dlID, dlg, token);
@@ -642,6 +781,9 @@ public class DownloadsActivity extends SherlockListActivity implements
         dlg.setOnDismissListener(new DialogInterface.OnDismissListener() {
             @Override
             public void onDismiss(DialogInterface dialog) {
+                try {
+                    service.unregisterListener(listener);
+                } catch (RemoteException e) { }
                 REFRESH_HANDLER.removeCallbacksAndMessages(null);
                 if (callback != null) {
                     callback.onDialogClosed(dlg);
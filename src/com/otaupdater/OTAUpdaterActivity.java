@@ -48,6 +48,7 @@ import com.otaupdater.utils.DownloadDialogCallback;
 import com.otaupdater.utils.KernelInfo;
 import com.otaupdater.utils.PropUtils;
 import com.otaupdater.utils.RomInfo;
+import com.otaupdater.utils.TaskExecutors;
 import com.otaupdater.utils.Utils;
 
 public class OTAUpdaterActivity extends SherlockFragmentActivity implements DownloadDialogCallback {
@@ -117,13 +118,13 @@ public class OTAUpdaterActivity extends SherlockFragmentActivity implements Down
                     } else {
                         Log.v(Config.LOG_TAG + "GCMRegister", "Already registered, out-of-date");
                         cfg.setValuesToCurrent();
-                        new AsyncTask<Void, Void, Void>() {
+                        TaskExecutors.executeNetwork(new AsyncTask<Void, Void, Void>() {
                             @Override
                             protected Void doInBackground(Void... params) {
                                 Utils.updateGCMRegistration(context, regId);
                                 return null;
                             }
-                        }.execute();
+                        });
                     }
                 } else {
                     GCMRegistrar.register(context, Config.GCM_SENDER_ID);
@@ -48,6 +48,7 @@ import com.actionbarsherlock.app.SherlockPreferenceActivity;
 import com.actionbarsherlock.view.MenuItem;
 import com.otaupdater.utils.Config;
 import com.otaupdater.utils.DialogCallback;
+import com.otaupdater.utils.TaskExecutors;
 import com.otaupdater.utils.UserUtils;
 import com.otaupdater.utils.UserUtils.LoginCallback;
 import com.otaupdater.utils.Utils;
@@ -232,12 +233,12 @@ public class SettingsActivity extends SherlockPreferenceActivity implements Dial
 
     private void redeemProKey() {
         if (cfg.isUserLoggedIn()) {
-            new RedeemTask(this, this).execute();
+            TaskExecutors.executeNetwork(new RedeemTask(this, this));
         } else {
             UserUtils.showLoginDialog(SettingsActivity.this, null, SettingsActivity.this, new LoginCallback() {
                 @Override
                 public void onLoggedIn(String username) {
-                    new RedeemTask(SettingsActivity.this, SettingsActivity.this).execute();
+                    TaskExecutors.executeNetwork(new RedeemTask(SettingsActivity.this, SettingsActivity.this));
                 }
 
                 @Override
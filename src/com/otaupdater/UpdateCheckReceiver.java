@@ -33,6 +33,7 @@ import com.otaupdater.utils.KernelInfo.KernelInfoListener;
 import com.otaupdater.utils.PropUtils;
 import com.otaupdater.utils.RomInfo;
 import com.otaupdater.utils.RomInfo.RomInfoListener;
+import com.otaupdater.utils.TaskExecutors;
 import com.otaupdater.utils.Utils;
 
 public class UpdateCheckReceiver extends BroadcastReceiver {
@@ -99,13 +100,13 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
                     } else {
                         Log.v(Config.LOG_TAG + "GCMRegister", "Already registered, out-of-date");
                         cfg.setValuesToCurrent();
-                        new AsyncTask<Void, Void, Void>() {
+                        TaskExecutors.executeNetwork(new AsyncTask<Void, Void, Void>() {
                             @Override
                             protected Void doInBackground(Void... params) {
                                 Utils.updateGCMRegistration(context, regId);
                                 return null;
                             }
-                        }.execute();
+                        });
                     }
                 } else {
                     GCMRegistrar.register(context, Config.GCM_SENDER_ID);
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+/**
+ * Delays between reconnect attempts: exponential, capped, and jittered so
+ * several connections dropped together don't all come back at once.
+ */
+class Backoff {
+    private Backoff() {
+    }
+
+    /**
+     * @param attempt 0 for the first retry
+     * @return ms to wait, between half and all of the exponential delay
+     */
+    static long delay(int attempt) {
+        long max = Config.DL_RECONNECT_BASE_DELAY << Math.min(attempt, 16);
+        if (max > Config.DL_RECONNECT_MAX_DELAY) max = Config.DL_RECONNECT_MAX_DELAY;
+        return max / 2 + (long) (Math.random() * (max / 2));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Block checksums the server publishes next to a ROM zip, zsync style, so
+ * we can tell which parts of the new zip an old one already has.
+ *
+ * <pre>
+ * "OTABLK01"      magic
+ * 8 bytes         size of the file
+ * 4 bytes         block size
+ * per block:
+ *   4 bytes       rsync rolling checksum, a | b &lt;&lt; 16
+ *   16 bytes      md5
+ * </pre>
+ *
+ * All big endian. The last block may be short; it's never looked for in the
+ * old file, only whole blocks are.
+ */
+class BlockManifest {
+    private static final byte[] MAGIC = { 'O', 'T', 'A', 'B', 'L', 'K', '0', '1' };
+
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 16 * 1048576;
+    private static final int MAX_BLOCKS = 4 * 1048576;
+
+    private final long fileSize;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    private BlockManifest(long fileSize, int blockSize, int[] weak, byte[][] strong) {
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    static BlockManifest read(InputStream in) throws IOException {
+        DataInputStream is = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        is.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a block manifest");
+
+        long fileSize = is.readLong();
+        int blockSize = is.readInt();
+        if (fileSize <= 0 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE ||
+                (fileSize + blockSize - 1) / blockSize > MAX_BLOCKS) {
+            throw new IOException("bad manifest header");
+        }
+
+        int nBlocks = (int) ((fileSize + blockSize - 1) / blockSize);
+        int[] weak = new int[nBlocks];
+        byte[][] strong = new byte[nBlocks][16];
+        for (int q = 0; q < nBlocks; q++) {
+            weak[q] = is.readInt();
+            is.readFully(strong[q]);
+        }
+        return new BlockManifest(fileSize, blockSize, weak, strong);
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return weak.length;
+    }
+
+    long getBlockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    int getBlockLength(int block) {
+        return (int) Math.min(blockSize, fileSize - getBlockStart(block));
+    }
+
+    /**
+     * @return total length of the blocks scan found
+     */
+    long getFoundBytes(long[] found) {
+        long bytes = 0;
+        for (int q = 0; q < found.length; q++) {
+            if (found[q] != -1) bytes += getBlockLength(q);
+        }
+        return bytes;
+    }
+
+    /**
+     * Rolls a block sized window over old, looking each position's weak
+     * checksum up among the blocks and confirming hits with the md5. After a
+     * match the window jumps a whole block, since files that share blocks
+     * usually share runs of them.
+     *
+     * @return for each block, where in old the same bytes are or -1, or null
+     *         if the download was stopped meanwhile
+     */
+    long[] scan(File old, DownloadTask task) throws IOException {
+        int bs = blockSize;
+        int nWhole = (int) (fileSize / bs);
+
+        // most positions match nothing, so check a cheap table before the map
+        boolean[] hint = new boolean[65536];
+        HashMap<Integer, ArrayList<Integer>> byWeak = new HashMap<Integer, ArrayList<Integer>>();
+        for (int q = 0; q < nWhole; q++) {
+            hint[hint16(weak[q])] = true;
+            ArrayList<Integer> blocks = byWeak.get(weak[q]);
+            if (blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                byWeak.put(weak[q], blocks);
+            }
+            blocks.add(q);
+        }
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        long[] found = new long[weak.length];
+        Arrays.fill(found, -1);
+        int left = nWhole;
+
+        byte[] buf = new byte[Math.max(2 * bs, Config.DL_BLOCK_SCAN_BUFFER)];
+        long bufPos = 0; // offset in old of buf[0]
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        boolean summed = false;
+        int a = 0;
+        int b = 0;
+
+        FileInputStream in = new FileInputStream(old);
+        try {
+            while (left > 0) {
+                if (end - start <= bs && !eof) {
+                    // keep a whole window plus the byte rolled in next
+                    if (task.checkInterrupted() != null) return null;
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    bufPos += start;
+                    end -= start;
+                    start = 0;
+                    int nRead = in.read(buf, end, buf.length - end);
+                    if (nRead == -1) eof = true;
+                    else end += nRead;
+                    continue;
+                }
+                if (end - start < bs) break;
+
+                if (!summed) {
+                    a = 0;
+                    b = 0;
+                    for (int q = 0; q < bs; q++) {
+                        int x = buf[start + q] & 0xFF;
+                        a += x;
+                        b += (bs - q) * x;
+                    }
+                    a &= 0xFFFF;
+                    b &= 0xFFFF;
+                    summed = true;
+                }
+
+                int sum = a | (b << 16);
+                if (hint[hint16(sum)]) {
+                    ArrayList<Integer> blocks = byWeak.get(sum);
+                    if (blocks != null && matchBlocks(blocks, found, md5, buf, start, bufPos + start)) {
+                        left -= countFound(blocks, found, bufPos + start);
+                        start += bs;
+                        summed = false;
+                        continue;
+                    }
+                }
+
+                if (end - start == bs) break; // at the end of old
+                int out = buf[start] & 0xFF;
+                int next = buf[start + bs] & 0xFF;
+                a = (a - out + next) & 0xFFFF;
+                b = (b - bs * out + a) & 0xFFFF;
+                start++;
+            }
+        } finally {
+            in.close();
+        }
+        return found;
+    }
+
+    /**
+     * Marks every block among blocks that isn't found yet and has the same
+     * md5 as the window as found at pos.
+     *
+     * @return true if any was
+     */
+    private boolean matchBlocks(ArrayList<Integer> blocks, long[] found, MessageDigest md5,
+            byte[] buf, int off, long pos) {
+        byte[] digest = null;
+        boolean matched = false;
+        for (int block : blocks) {
+            if (found[block] != -1) continue;
+            if (digest == null) {
+                md5.update(buf, off, blockSize);
+                digest = md5.digest();
+            }
+            if (Arrays.equals(digest, strong[block])) {
+                found[block] = pos;
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    private static int countFound(ArrayList<Integer> blocks, long[] found, long pos) {
+        int n = 0;
+        for (int block : blocks) {
+            if (found[block] == pos) n++;
+        }
+        return n;
+    }
+
+    private static int hint16(int sum) {
+        return (sum ^ (sum >>> 16)) & 0xFFFF;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.content.Context;
+import android.net.http.AndroidHttpClient;
+import android.util.Log;
+
+import com.otaupdater.utils.DownloadTask.DownloadResult;
+
+/**
+ * Builds a ROM zip mostly out of an older one: the blocks a
+ * {@link BlockManifest} scan found in the old zip are copied over locally,
+ * and only the missing ranges are fetched, many to a request. Everything
+ * written goes into the {@link DownloadJournal}, so a download stopped
+ * halfway resumes like a segmented one.
+ */
+class BlockReuse implements BlockWriter.Listener {
+    private static final String TAG = Config.LOG_TAG + "DLBlocks";
+
+    private final DownloadTask task;
+    private final DlState state;
+    private final File dest;
+    private final Context context;
+    private final BlockManifest manifest;
+    private final DownloadJournal journal;
+
+    private final byte[] buf = new byte[Config.DL_PIPELINE_BUFFER_SIZE];
+    private final RateGovernor.Lane lane;
+    private RandomAccessFile raf;
+    private BlockWriter writer;
+
+    private long reused = 0;
+    private long fetched = 0;
+
+    BlockReuse(DownloadTask task, DlState state, File dest, Context ctx,
+            BlockManifest manifest, DownloadJournal journal) {
+        this.task = task;
+        this.state = state;
+        this.dest = dest;
+        this.context = ctx;
+        this.manifest = manifest;
+        this.journal = journal;
+        this.lane = task.newRateLane();
+    }
+
+    /**
+     * @param found where {@link BlockManifest#scan} found each block in old
+     * @return {@link DownloadResult#FINISHED} once dest is complete,
+     *         {@link DownloadResult#FAILED_CANNOT_RESUME} if the server sent
+     *         the whole file instead of ranges, the result to stop with, or
+     *         null if ranges are still missing after the server had trouble
+     *         with them
+     */
+    DownloadResult run(File old, long[] found) throws IOException {
+        DiskSpace.reserve(dest, manifest.getFileSize());
+        raf = new RandomAccessFile(dest, "rw");
+        writer = new BlockWriter(raf.getChannel(), this);
+        try {
+            journal.reset(manifest.getFileSize(), null);
+
+            DownloadResult result = copyBlocks(old, found);
+            if (result == null) result = fetchMissing();
+            return result;
+        } finally {
+            try {
+                writer.flush();
+                journal.checkpoint(raf.getFD());
+            } catch (IOException e) { }
+            try { raf.close(); }
+            catch (IOException e) { }
+
+            state.getTransferStats().addBlockReuse(reused, fetched);
+            Log.v(TAG, "reused " + reused + " bytes, fetched " + fetched + " of " + manifest.getFileSize());
+        }
+    }
+
+    private DownloadResult copyBlocks(File old, long[] found) throws IOException {
+        byte[] block = new byte[manifest.getBlockSize()];
+        RandomAccessFile in = new RandomAccessFile(old, "r");
+        try {
+            for (int q = 0; q < found.length; q++) {
+                if (found[q] == -1) continue;
+                DownloadResult stop = task.checkInterrupted();
+                if (stop != null) return stop;
+
+                int len = manifest.getBlockLength(q);
+                in.seek(found[q]);
+                in.readFully(block, 0, len);
+                writer.write(manifest.getBlockStart(q), block, 0, len);
+                reused += len;
+            }
+        } finally {
+            in.close();
+        }
+        return null;
+    }
+
+    private DownloadResult fetchMissing() throws IOException {
+        writer.flush();
+        ArrayList<long[]> ranges = mergeRanges(journal.getGaps());
+        AndroidHttpClient httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
+        try {
+            for (int q = 0; q < ranges.size(); q += Config.DL_BLOCK_RANGES_PER_REQUEST) {
+                DownloadResult stop = task.checkInterrupted();
+                if (stop != null) return stop;
+
+                List<long[]> batch = ranges.subList(q, Math.min(ranges.size(), q + Config.DL_BLOCK_RANGES_PER_REQUEST));
+                HttpGet req = new HttpGet(state.getSourceURL());
+                req.addHeader("Range", rangeHeader(batch));
+                if (state.getValidator() != null) req.addHeader("If-Range", state.getValidator());
+                try {
+                    HttpResponse resp = httpc.execute(req);
+                    int statusCode = resp.getStatusLine().getStatusCode();
+                    if (statusCode == 200) {
+                        Log.v(TAG, "server sent the whole file");
+                        return DownloadResult.FAILED_CANNOT_RESUME;
+                    }
+                    if (statusCode != 206) {
+                        Log.v(TAG, "HTTP " + statusCode + " for " + batch.size() + " ranges");
+                        return null;
+                    }
+                    task.adoptValidators(resp, journal);
+
+                    Header type = resp.getFirstHeader("Content-Type");
+                    String boundary = type == null ? null : getBoundary(type.getValue());
+                    InputStream in = new BufferedInputStream(resp.getEntity().getContent(), buf.length);
+                    stop = boundary == null
+                            ? readPart(in, resp.getFirstHeader("Content-Range"))
+                            : readMultipart(in, boundary);
+                    if (stop != null) return stop;
+                } catch (IOException e) {
+                    stop = task.checkInterrupted();
+                    if (stop != null) return stop;
+                    Log.v(TAG, "range request failed: " + e.getMessage());
+                    return null;
+                } finally {
+                    req.abort();
+                }
+            }
+        } finally {
+            httpc.close();
+        }
+
+        // a server may answer with fewer ranges than asked for
+        writer.flush();
+        return journal.getGaps().isEmpty() ? DownloadResult.FINISHED : null;
+    }
+
+    /**
+     * Reads a multipart/byteranges body, one part per range.
+     */
+    private DownloadResult readMultipart(InputStream in, String boundary) throws IOException {
+        String delimiter = "--" + boundary;
+        while (true) {
+            String line = readLine(in);
+            if (line == null) throw new EOFException("multipart body ended early");
+            if (line.equals(delimiter + "--")) return null;
+            if (!line.equals(delimiter)) continue; // preamble, or the line break ending a part
+
+            String range = null;
+            while ((line = readLine(in)) != null && line.length() != 0) {
+                int colon = line.indexOf(':');
+                if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            DownloadResult stop = readPart(in, range);
+            if (stop != null) return stop;
+        }
+    }
+
+    private DownloadResult readPart(InputStream in, Header range) throws IOException {
+        return readPart(in, range == null ? null : range.getValue());
+    }
+
+    /**
+     * Copies one range's bytes to where they go in the file.
+     *
+     * @param range the part's Content-Range
+     */
+    private DownloadResult readPart(InputStream in, String range) throws IOException {
+        long[] span = parseContentRange(range);
+        if (span == null) throw new IOException("bad Content-Range " + range);
+
+        long pos = span[0];
+        while (pos < span[1]) {
+            DownloadResult stop = task.checkInterrupted();
+            if (stop != null) return stop;
+
+            int nRead = in.read(buf, 0, (int) Math.min(buf.length, span[1] - pos));
+            if (nRead == -1) throw new EOFException("range ended early at " + pos);
+            lane.acquire(nRead);
+            writer.write(pos, buf, 0, nRead);
+            fetched += nRead;
+            pos += nRead;
+        }
+        return null;
+    }
+
+    @Override
+    public void onWritten(long pos, byte[] data, int off, int len) throws IOException {
+        journal.markWritten(pos, pos + len);
+        state.setTotalDone(journal.getDoneBytes());
+        if (journal.isCheckpointDue()) {
+            journal.checkpoint(raf.getFD());
+        }
+    }
+
+    /**
+     * @return [start, end) of a "bytes first-last/total" range within our file, or null
+     */
+    private long[] parseContentRange(String range) {
+        if (range == null || !range.startsWith("bytes ")) return null;
+        int dash = range.indexOf('-');
+        int slash = range.indexOf('/');
+        if (dash == -1 || slash < dash) return null;
+        try {
+            long first = Long.parseLong(range.substring(6, dash).trim());
+            long last = Long.parseLong(range.substring(dash + 1, slash).trim());
+            String total = range.substring(slash + 1).trim();
+            if (!total.equals("*") && Long.parseLong(total) != manifest.getFileSize()) return null;
+            if (first < 0 || last < first || last >= manifest.getFileSize()) return null;
+            return new long[] { first, last + 1 };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Joins ranges with only a little between them; fetching those few bytes
+     * again costs less than another part.
+     */
+    private static ArrayList<long[]> mergeRanges(ArrayList<long[]> gaps) {
+        ArrayList<long[]> ranges = new ArrayList<long[]>(gaps.size());
+        for (long[] gap : gaps) {
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && gap[0] - last[1] <= Config.DL_BLOCK_MERGE_GAP) {
+                last[1] = gap[1];
+            } else {
+                ranges.add(new long[] { gap[0], gap[1] });
+            }
+        }
+        return ranges;
+    }
+
+    private static String rangeHeader(List<long[]> ranges) {
+        StringBuilder sb = new StringBuilder("bytes=");
+        for (long[] range : ranges) {
+            if (sb.length() != 6) sb.append(',');
+            sb.append(range[0]).append('-').append(range[1] - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the boundary of a multipart/byteranges Content-Type, or null for anything else
+     */
+    private static String getBoundary(String contentType) {
+        if (!contentType.trim().toLowerCase().startsWith("multipart/byteranges")) return null;
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (!param.toLowerCase().startsWith("boundary=")) continue;
+            String boundary = param.substring(9).trim();
+            if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            return boundary.length() == 0 ? null : boundary;
+        }
+        return null;
+    }
+
+    /**
+     * @return the next line without its line break, or null at the end
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (sb.length() >= 1024) throw new IOException("header line too long");
+            if (c != '\r') sb.append((char) c);
+        }
+        return c == -1 && sb.length() == 0 ? null : sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Gathers a stream of small writes into blocks of
+ * {@link Config#DL_WRITE_BLOCK_SIZE} that start and end on block boundaries
+ * in the file, and writes those at their position through a FileChannel.
+ * Storage, FUSE in particular, copes far better with few big aligned writes
+ * than with many little ones.
+ *
+ * Not thread safe; each writing thread has its own.
+ */
+class BlockWriter {
+    /**
+     * Told about data once it has actually been written to the file.
+     */
+    interface Listener {
+        void onWritten(long pos, byte[] buf, int off, int len) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final Listener listener;
+    private final int blockSize;
+    private final byte[] block;
+
+    /** where in the file block[0] goes */
+    private long blockPos = 0;
+    private int blockLen = 0;
+
+    BlockWriter(FileChannel channel, Listener listener) {
+        this(channel, listener, Config.DL_WRITE_BLOCK_SIZE);
+    }
+
+    BlockWriter(FileChannel channel, Listener listener, int blockSize) {
+        this.channel = channel;
+        this.listener = listener;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Takes len bytes that belong at pos. They're written once they reach a
+     * block boundary, or at the next {@link #flush}.
+     */
+    void write(long pos, byte[] buf, int off, int len) throws IOException {
+        if (blockLen != 0 && pos != blockPos + blockLen) flush();
+        while (len > 0) {
+            if (blockLen == 0) blockPos = pos;
+            // the first block after a jump only runs to the next boundary
+            int room = (int) (blockSize - (blockPos + blockLen) % blockSize);
+            int n = Math.min(room, len);
+            System.arraycopy(buf, off, block, blockLen, n);
+            blockLen += n;
+            pos += n;
+            off += n;
+            len -= n;
+            if (n == room) flush();
+        }
+    }
+
+    /**
+     * Writes out whatever is held back.
+     */
+    void flush() throws IOException {
+        if (blockLen == 0) return;
+        ByteBuffer bb = ByteBuffer.wrap(block, 0, blockLen);
+        long at = blockPos;
+        while (bb.hasRemaining()) at += channel.write(bb, at);
+
+        int len = blockLen;
+        blockLen = 0;
+        listener.onWritten(blockPos, block, 0, len);
+    }
+
+    /**
+     * Drops whatever is held back, after a {@link #flush} failed.
+     */
+    void discard() {
+        blockLen = 0;
+    }
+}
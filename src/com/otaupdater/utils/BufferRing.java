@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed set of large buffers passed between a producer and a consumer. The
+ * producer takes empty buffers and hands them over full, the consumer drains
+ * them and gives them back; with every buffer in flight the faster side has
+ * to wait, which is the backpressure. Both sides count how often and how
+ * long they waited so we can tell which one is the bottleneck.
+ */
+class BufferRing {
+    private final ArrayBlockingQueue<Buffer> free;
+    private final ArrayBlockingQueue<Buffer> full;
+
+    private volatile boolean closed = false;
+
+    private long producerWaits = 0;
+    private long producerWaitNanos = 0;
+    private long consumerWaits = 0;
+    private long consumerWaitNanos = 0;
+
+    BufferRing(int count, int size) {
+        free = new ArrayBlockingQueue<Buffer>(count);
+        full = new ArrayBlockingQueue<Buffer>(count + 1);
+        for (int q = 0; q < count; q++) {
+            free.add(new Buffer(size));
+        }
+    }
+
+    /**
+     * @return an empty buffer, or null once the ring is closed
+     */
+    Buffer takeFree() throws InterruptedException {
+        Buffer buf = free.poll();
+        if (buf == null) {
+            long start = System.nanoTime();
+            while (buf == null && !closed) {
+                buf = free.poll(50, TimeUnit.MILLISECONDS);
+            }
+            synchronized (this) {
+                producerWaits++;
+                producerWaitNanos += System.nanoTime() - start;
+            }
+        }
+        if (buf != null) buf.clear();
+        return buf;
+    }
+
+    void putFull(Buffer buf) {
+        full.add(buf);
+    }
+
+    /**
+     * Marks the end of the data; the consumer gets a null once it has
+     * drained everything before it.
+     */
+    void putEnd() {
+        full.add(Buffer.END);
+    }
+
+    /**
+     * @return the next full buffer, or null at the end or once closed
+     */
+    Buffer takeFull() throws InterruptedException {
+        Buffer buf = full.poll();
+        if (buf == null) {
+            long start = System.nanoTime();
+            while (buf == null && !closed) {
+                buf = full.poll(50, TimeUnit.MILLISECONDS);
+            }
+            synchronized (this) {
+                consumerWaits++;
+                consumerWaitNanos += System.nanoTime() - start;
+            }
+        }
+        return buf == Buffer.END ? null : buf;
+    }
+
+    void putFree(Buffer buf) {
+        free.add(buf);
+    }
+
+    /**
+     * Wakes up both sides for good; used when one of them fails.
+     */
+    void close() {
+        closed = true;
+    }
+
+    synchronized long getProducerWaits() {
+        return producerWaits;
+    }
+
+    synchronized long getProducerWaitMillis() {
+        return producerWaitNanos / 1000000;
+    }
+
+    synchronized long getConsumerWaits() {
+        return consumerWaits;
+    }
+
+    synchronized long getConsumerWaitMillis() {
+        return consumerWaitNanos / 1000000;
+    }
+
+    static class Buffer {
+        private static final Buffer END = new Buffer(0);
+
+        byte[] data;
+        int len = 0;
+
+        Buffer(int size) {
+            data = new byte[size];
+        }
+
+        void clear() {
+            len = 0;
+        }
+
+        int room() {
+            return data.length - len;
+        }
+
+        /**
+         * Swaps data for an empty array of size, if it's another size. Only
+         * for a buffer just taken with {@link BufferRing#takeFree}.
+         */
+        void resize(int size) {
+            if (data.length != size) data = new byte[size];
+        }
+    }
+}
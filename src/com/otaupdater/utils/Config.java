@@ -56,6 +56,73 @@ public class Config {
     public static final int DL_RETRY_MAX = 86400; //60*60*24
     public static final int DL_RETRY_MIN = 30;
 
+    public static final long DL_SEGMENT_MIN_SIZE = 8 * 1048576; //smaller files aren't worth splitting
+    public static final long DL_SEGMENT_MIN_SPLIT = 1048576;
+    public static final int DL_SEGMENTS_INITIAL = 2;
+    public static final int DL_MAX_SEGMENTS = 6;
+    public static final int DL_SEGMENT_MAX_RETRIES = 5;
+    public static final long DL_SEGMENT_POLL_INTERVAL = 250;
+    public static final long DL_SEGMENT_SAMPLE_INTERVAL = 3000;
+    public static final int DL_RECONNECT_MAX_TRIES = 8;
+    public static final long DL_RECONNECT_BASE_DELAY = 500;
+    public static final long DL_RECONNECT_MAX_DELAY = 15000;
+    public static final int DL_TAIL_CHECK_SIZE = 16384; //re-fetched and compared when there's nothing to send in If-Range
+    public static final int DL_MIRROR_MAX = 8;
+    public static final long DL_MIRROR_PROBE_TIMEOUT = 5000;
+    public static final long DL_MIRROR_PROBE_TTL = 30 * 60 * 1000; //a probe's result is reused this long
+    public static final long DL_MIRROR_RANK_BYTES = 1048576; //mirrors are ranked on how long this much would take
+    public static final long DL_MIRROR_ASSUMED_RATE = 262144; //for mirrors we have no stats for yet
+    public static final long DL_MIRROR_MIN_SAMPLE = 262144;
+    public static final int DL_MIRROR_SWITCH_FAILURES = 2; //in a row, before moving to another mirror
+    public static final int DL_DELTA_BUFFER_SIZE = 65536;
+    public static final String DL_BLOCK_MANIFEST_SUFFIX = ".blocks"; //block checksums sit next to the zip
+    public static final int DL_BLOCK_SCAN_BUFFER = 1048576;
+    public static final int DL_BLOCK_RANGES_PER_REQUEST = 64;
+    public static final long DL_BLOCK_MERGE_GAP = 4096; //refetch gaps this small rather than split a range
+    public static final long DL_CHECKPOINT_BYTES = 4 * 1048576;
+    public static final int DL_WRITE_BLOCK_SIZE = 262144; //downloads are written in aligned blocks of this size
+    public static final int DL_SYNC_ON_STOP = 0; //journal synced only when a download stops
+    public static final int DL_SYNC_PERIODIC = 1; //and every DL_CHECKPOINT_BYTES
+    public static final int DL_SYNC_EVERY_BLOCK = 2; //and after every DL_WRITE_BLOCK_SIZE written
+    public static final int DL_SYNC_POLICY = DL_SYNC_PERIODIC;
+    public static final long DL_DIGEST_CATCHUP_STEP = 8 * 1048576;
+    public static final int DL_PIPELINE_BUFFERS = 8;
+    public static final int DL_PIPELINE_BUFFER_SIZE = 65536;
+    public static final int DL_PIPELINE_HANDOFF_MIN = 16384; //don't wake the writer for every little read
+    public static final int DL_TUNE_BUFFER_MIN = 8192;
+    public static final int DL_TUNE_MEMORY = 2 * 1048576; //read buffers of one download stay under this together
+    public static final long DL_TUNE_INTERVAL = 2000;
+    public static final long DL_TUNE_BUFFER_MILLIS = 100; //a read buffer should hold about this much of the stream
+    public static final long DL_TUNE_SEGMENT_MILLIS = 10000; //less work than this per connection isn't worth a split
+    public static final long DL_TUNE_SEGMENT_MIN = 262144;
+    public static final long DL_TUNE_SEGMENT_MAX = 16 * 1048576;
+    public static final long DL_PROGRESS_INTERVAL = 500;
+    public static final long DL_PROGRESS_MIN_BYTES = 65536;
+    public static final long DL_PROGRESS_STEPS = 1000; //finer than any progress bar we show
+    public static final long DL_LISTENER_INTERVAL = 500;
+
+    public static final int DL_DEFAULT_PARALLEL = 2;
+    public static final int DL_EXECUTOR_THREADS = 4;
+    public static final int NETWORK_EXECUTOR_THREADS = 3;
+    public static final int DL_DEFAULT_HOST_CONNECTIONS = 8;
+    public static final long DL_DEFAULT_MAX_RATE = 0; //bytes/s for all downloads together, 0 for no limit
+    public static final int DL_DEFAULT_WEIGHT = 10; //a download's share of the rate limit, relative to the others
+    public static final int DL_MAX_WEIGHT = 1000;
+    public static final long DL_RATE_SLICE_MILLIS = 50; //a reading thread takes this much of its share at once
+    public static final long DL_RATE_SLICE_MIN = 4096;
+    public static final long DL_RATE_BURST_MILLIS = 500; //tokens a download can save up while it isn't reading
+    public static final long DL_RATE_MAX_WAIT = 1000;
+
+    public static final int DL_ORDER_FIFO = 0;
+    public static final int DL_ORDER_KERNEL_FIRST = 1;
+    public static final int DL_ORDER_SMALLEST_FIRST = 2;
+
+    public static final long STATE_LOG_COMPACT_BYTES = 256 * 1024;
+    public static final int STATE_LOG_MAX_RECORD = 1048576; //anything bigger is garbage
+    public static final long STATE_PERSIST_DELAY = 100;
+    public static final long STATE_PERSIST_SLOW_NANOS = 50 * 1000000L;
+    public static final long STATE_PERSIST_FLUSH_TIMEOUT = 5000;
+
     public static final int WAKE_TIMEOUT = 30000;
 
     public static final String DL_PATH = "/" + PropUtils.getOSSdPath() + "/OTA-Updater/download/";
@@ -111,6 +178,13 @@ public class Config {
     private boolean ignoredUnsupportedWarn = false;
     private boolean ignoredDataWarn = false;
 
+    private int maxParallelDl = DL_DEFAULT_PARALLEL;
+    private int maxHostConnections = DL_DEFAULT_HOST_CONNECTIONS;
+    private long maxDlRate = DL_DEFAULT_MAX_RATE;
+    /** written after the settings it covers, so reading it first makes them visible */
+    private volatile int dlPolicySeq = 0;
+    private int dlOrder = DL_ORDER_KERNEL_FIRST;
+
     private int lastVersion = -1;
     private String lastDevice = null;
     private String lastRomID = null;
@@ -146,6 +220,11 @@ public class Config {
         ignoredUnsupportedWarn = PREFS.getBoolean("ignoredUnsupportedWarn", ignoredUnsupportedWarn);
         ignoredDataWarn = PREFS.getBoolean("ignoredDataWarn", ignoredDataWarn);
 
+        maxParallelDl = PREFS.getInt("maxParallelDl", maxParallelDl);
+        maxHostConnections = PREFS.getInt("maxHostConnections", maxHostConnections);
+        maxDlRate = PREFS.getLong("maxDlRate", maxDlRate);
+        dlOrder = PREFS.getInt("dlOrder", dlOrder);
+
         lastDevice = PREFS.getString("device", lastDevice);
         lastVersion = PREFS.getInt("version", lastVersion);
         lastRomID = PREFS.getString("rom_id", lastRomID);
@@ -157,8 +236,11 @@ public class Config {
                         PREFS.getString("rom_info_version", null),
                         PREFS.getString("rom_info_changelog", null),
                         PREFS.getString("rom_info_url", null),
+                        Utils.splitMirrors(PREFS.getString("rom_info_mirrors", null)),
                         PREFS.getString("rom_info_md5", null),
                         Utils.parseDate(PREFS.getString("rom_info_date", null)));
+                storedRomUpdate.deltaUrl = PREFS.getString("rom_info_delta_url", null);
+                storedRomUpdate.deltaFrom = PREFS.getString("rom_info_delta_from", null);
             } else {
                 clearStoredRomUpdate();
             }
@@ -170,6 +252,7 @@ public class Config {
                         PREFS.getString("kernel_info_version", null),
                         PREFS.getString("kernel_info_changelog", null),
                         PREFS.getString("kernel_info_url", null),
+                        Utils.splitMirrors(PREFS.getString("kernel_info_mirrors", null)),
                         PREFS.getString("kernel_info_md5", null),
                         Utils.parseDate(PREFS.getString("kernel_info_date", null)));
             } else {
@@ -265,6 +348,16 @@ public class Config {
     public void setWifiOnlyDl(boolean wifiOnlyDl) {
         this.wifiOnlyDl = wifiOnlyDl;
         putBoolean("wifiOnlyDl", wifiOnlyDl);
+        dlPolicySeq++;
+    }
+
+    /**
+     * @return a number that changes whenever a setting deciding which
+     *         networks downloads may use does, so running downloads can
+     *         tell when to check again
+     */
+    public int getDlPolicySeq() {
+        return dlPolicySeq;
     }
 
     public boolean getAutoDlState() {
@@ -294,6 +387,48 @@ public class Config {
         putBoolean("ignoredDataWarn", ignored);
     }
 
+    public int getMaxParallelDl() {
+        return maxParallelDl;
+    }
+
+    public void setMaxParallelDl(int maxParallelDl) {
+        this.maxParallelDl = maxParallelDl;
+        putInt("maxParallelDl", maxParallelDl);
+    }
+
+    public int getMaxHostConnections() {
+        return maxHostConnections;
+    }
+
+    public void setMaxHostConnections(int maxHostConnections) {
+        this.maxHostConnections = maxHostConnections;
+        putInt("maxHostConnections", maxHostConnections);
+    }
+
+    /**
+     * @return bytes/s all downloads together may use, 0 for no limit
+     */
+    public long getMaxDlRate() {
+        return maxDlRate;
+    }
+
+    public void setMaxDlRate(long maxDlRate) {
+        this.maxDlRate = maxDlRate;
+        putLong("maxDlRate", maxDlRate);
+    }
+
+    /**
+     * @return one of the DL_ORDER_* constants, how to order downloads of equal priority
+     */
+    public int getDlOrder() {
+        return dlOrder;
+    }
+
+    public void setDlOrder(int dlOrder) {
+        this.dlOrder = dlOrder;
+        putInt("dlOrder", dlOrder);
+    }
+
     public int getLastVersion() {
         return lastVersion;
     }
@@ -351,8 +486,11 @@ public class Config {
             editor.putString("rom_info_version", info.version);
             editor.putString("rom_info_changelog", info.changelog);
             editor.putString("rom_info_url", info.url);
+            editor.putString("rom_info_mirrors", Utils.joinMirrors(info.mirrors));
             editor.putString("rom_info_md5", info.md5);
             editor.putString("rom_info_date", Utils.formatDate(info.date));
+            editor.putString("rom_info_delta_url", info.deltaUrl);
+            editor.putString("rom_info_delta_from", info.deltaFrom);
             editor.commit();
         }
     }
@@ -364,8 +502,11 @@ public class Config {
             editor.remove("rom_info_version");
             editor.remove("rom_info_changelog");
             editor.remove("rom_info_url");
+            editor.remove("rom_info_mirrors");
             editor.remove("rom_info_md5");
             editor.remove("rom_info_date");
+            editor.remove("rom_info_delta_url");
+            editor.remove("rom_info_delta_from");
             editor.commit();
         }
     }
@@ -386,6 +527,7 @@ public class Config {
             editor.putString("kernel_info_version", info.version);
             editor.putString("kernel_info_changelog", info.changelog);
             editor.putString("kernel_info_url", info.url);
+            editor.putString("kernel_info_mirrors", Utils.joinMirrors(info.mirrors));
             editor.putString("kernel_info_md5", info.md5);
             editor.putString("kernel_info_date", Utils.formatDate(info.date));
             editor.commit();
@@ -399,6 +541,7 @@ public class Config {
             editor.remove("kernel_info_version");
             editor.remove("kernel_info_changelog");
             editor.remove("kernel_info_url");
+            editor.remove("kernel_info_mirrors");
             editor.remove("kernel_info_md5");
             editor.remove("kernel_info_date");
             editor.commit();
@@ -449,6 +592,14 @@ public class Config {
         }
     }
 
+    private void putInt(String name, int value) {
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.putInt(name, value);
+            editor.commit();
+        }
+    }
+
     private void putLong(String name, long value) {
         synchronized (PREFS) {
             SharedPreferences.Editor editor = PREFS.edit();
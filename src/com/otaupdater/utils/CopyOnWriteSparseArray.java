@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.util.SparseArray;
+
+/**
+ * A {@link SparseArray} any thread can read while another writes. Every
+ * write copies the array and publishes the copy through a volatile
+ * reference, so a reader always holds a complete, unchanging array. Meant
+ * for maps that are read far more often than written, like the service's
+ * list of downloads.
+ */
+public class CopyOnWriteSparseArray<E> {
+    private volatile SparseArray<E> array = new SparseArray<E>();
+
+    public E get(int key) {
+        return array.get(key);
+    }
+
+    public int size() {
+        return array.size();
+    }
+
+    /**
+     * Use this rather than size/keyAt/valueAt on this object when going
+     * through every entry, so they all come from the same version.
+     *
+     * @return the current contents, which must not be modified
+     */
+    public SparseArray<E> snapshot() {
+        return array;
+    }
+
+    public synchronized void put(int key, E value) {
+        SparseArray<E> copy = array.clone();
+        copy.put(key, value);
+        array = copy;
+    }
+
+    public synchronized void delete(int key) {
+        if (array.indexOfKey(key) < 0) return;
+        SparseArray<E> copy = array.clone();
+        copy.delete(key);
+        array = copy;
+    }
+
+    /**
+     * Replaces everything with the contents of values, which is copied.
+     */
+    public synchronized void replaceAll(SparseArray<E> values) {
+        array = values.clone();
+    }
+
+    public synchronized void clear() {
+        array = new SparseArray<E>();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import com.otaupdater.utils.DownloadTask.DownloadResult;
+
+/**
+ * Builds a new ROM zip from the one we downloaded for the installed version
+ * plus a patch, so only the patch has to come over the network.
+ *
+ * Patches use bsdiff's control/diff/extra scheme, but with the three streams
+ * interleaved in one zlib stream (Android has no bzip2), which lets the patch
+ * be applied as it arrives instead of being saved first:
+ *
+ * <pre>
+ * "OTADIFF1"             magic
+ * 8 bytes                size of the new file (bsdiff offtin)
+ * zlib stream of records until the new file is complete:
+ *   3 x 8 bytes          diff length, extra length, old seek (offtin)
+ *   diff length bytes    added bytewise to the old file
+ *   extra length bytes   copied as they are
+ * </pre>
+ *
+ * The old file is only read, at whatever offsets the patch asks for; the new
+ * file is written front to back.
+ */
+class DeltaPatcher {
+    /**
+     * The patch itself is no good, trying it again won't help.
+     */
+    static class BadPatchException extends IOException {
+        private static final long serialVersionUID = 4906436473529806118L;
+
+        BadPatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static final byte[] MAGIC = { 'O', 'T', 'A', 'D', 'I', 'F', 'F', '1' };
+
+    private final DownloadTask task;
+    private final byte[] buf = new byte[Config.DL_DELTA_BUFFER_SIZE];
+    private final byte[] oldBuf = new byte[Config.DL_DELTA_BUFFER_SIZE];
+    private final byte[] offBuf = new byte[8];
+
+    DeltaPatcher(DownloadTask task) {
+        this.task = task;
+    }
+
+    /**
+     * @return the old zip the ROM's delta applies to, or null if there's no
+     *         delta for the installed version or we don't have its zip anymore
+     */
+    static File getBaseFile(RomInfo info) {
+        if (info.deltaUrl == null || info.deltaFrom == null) return null;
+        if (!info.deltaFrom.equalsIgnoreCase(PropUtils.getRomOtaVersion())) return null;
+        return info.getInstalledRomFile();
+    }
+
+    /**
+     * Reads the patch's header, which has to come before {@link #apply}.
+     *
+     * @return size of the new file
+     */
+    long readHeader(InputStream patch) throws IOException {
+        readFully(patch, offBuf, 0, 8);
+        if (!Arrays.equals(offBuf, MAGIC)) throw new BadPatchException("not a patch");
+        readFully(patch, offBuf, 0, 8);
+        long newSize = offtin(offBuf);
+        if (newSize < 0) throw new BadPatchException("bad patch header");
+        return newSize;
+    }
+
+    /**
+     * Applies the rest of patch to old, writing the new file to out and feeding it to md5.
+     *
+     * @param patch the raw patch, as downloaded, past the header
+     * @param newSize from {@link #readHeader}
+     * @return the result to finish with if the download had to stop, or null once the new file is complete
+     * @throws IOException on a read or write error
+     * @throws BadPatchException on a patch that makes no sense
+     */
+    DownloadResult apply(InputStream patch, long newSize, RandomAccessFile old, OutputStream out, ResumableMd5 md5) throws IOException {
+        InputStream in = new InflaterInputStream(patch);
+        long oldSize = old.length();
+        long oldPos = 0;
+        long newPos = 0;
+        while (newPos < newSize) {
+            DownloadResult stop = task.checkInterrupted();
+            if (stop != null) return stop;
+
+            long diffLen = readOff(in);
+            long extraLen = readOff(in);
+            long seek = readOff(in);
+            if (diffLen < 0 || extraLen < 0 || newPos + diffLen + extraLen > newSize) {
+                throw new BadPatchException("corrupt patch at " + newPos);
+            }
+
+            for (long left = diffLen; left > 0; ) {
+                int n = (int) Math.min(left, buf.length);
+                readFully(in, buf, 0, n);
+                readOld(old, oldSize, oldPos, n);
+                for (int q = 0; q < n; q++) buf[q] += oldBuf[q];
+                out.write(buf, 0, n);
+                md5.update(buf, 0, n);
+                oldPos += n;
+                left -= n;
+            }
+
+            for (long left = extraLen; left > 0; ) {
+                int n = (int) Math.min(left, buf.length);
+                readFully(in, buf, 0, n);
+                out.write(buf, 0, n);
+                md5.update(buf, 0, n);
+                left -= n;
+            }
+
+            newPos += diffLen + extraLen;
+            oldPos += seek;
+        }
+        return null;
+    }
+
+    /**
+     * Reads n bytes of the old file at pos into oldBuf. As in bsdiff, bytes
+     * outside the file count as zero.
+     */
+    private void readOld(RandomAccessFile old, long oldSize, long pos, int n) throws IOException {
+        Arrays.fill(oldBuf, 0, n, (byte) 0);
+        long from = Math.max(pos, 0);
+        long to = Math.min(pos + n, oldSize);
+        if (from >= to) return;
+        old.seek(from);
+        old.readFully(oldBuf, (int) (from - pos), (int) (to - from));
+    }
+
+    private long readOff(InputStream in) throws IOException {
+        readFully(in, offBuf, 0, 8);
+        return offtin(offBuf);
+    }
+
+    /**
+     * bsdiff's sign and magnitude, little endian 64-bit integer.
+     */
+    private static long offtin(byte[] b) {
+        long y = b[7] & 0x7F;
+        for (int q = 6; q >= 0; q--) {
+            y = (y << 8) | (b[q] & 0xFF);
+        }
+        return (b[7] & 0x80) != 0 ? -y : y;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int nRead = in.read(b, off, len);
+            if (nRead == -1) throw new EOFException("patch ended early");
+            off += nRead;
+            len -= nRead;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.os.StatFs;
+
+/**
+ * Sets download targets to their full size before any data comes in. On
+ * FAT and exFAT cards, which is most of what /sdcard is, that allocates the
+ * clusters in one go rather than a few at a time as the file grows, so the
+ * file isn't scattered across the card; and a card that's too full fails
+ * right away instead of partway through.
+ *
+ * setLength doesn't promise the space though: on filesystems with sparse
+ * files (ext4, and FUSE on top of it) it allocates nothing, and the card can
+ * still fill up underneath the download. The free space check is the real
+ * protection. Each file should be reserved once per start, by whoever
+ * opens it first.
+ */
+class DiskSpace {
+    /**
+     * Not enough room on the card for the download.
+     */
+    static class NoSpaceException extends IOException {
+        private static final long serialVersionUID = -2709324893507613047L;
+
+        NoSpaceException(String message) {
+            super(message);
+        }
+    }
+
+    private DiskSpace() {
+    }
+
+    /**
+     * Grows (or shrinks) file to size, keeping what's already in it.
+     */
+    static void reserve(File file, long size) throws IOException {
+        long have = file.exists() ? file.length() : 0;
+        if (size > have) {
+            // filesystems with sparse files allocate nothing here, so check what's free too
+            StatFs stat = new StatFs(file.getParentFile().getAbsolutePath());
+            long avail = ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
+            if (size - have >= avail) {
+                throw new NoSpaceException("need " + (size - have) + " bytes, " + avail + " free");
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } catch (IOException e) {
+            // ENOSPC from the filesystem itself
+            throw new NoSpaceException(e.getMessage());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.List;
+
+/**
+ * Id, status and byte counts of a set of downloads, packed into one
+ * long[] so the whole set crosses the binder as a single flat array.
+ * Anything else about a download has to be fetched with getDownload.
+ *
+ * The array starts with the service's change sequence at the time it was
+ * taken, for asking what changed since.
+ */
+public class DlSnapshot {
+    private static final int HEADER = 1;
+
+    private static final int ID = 0;
+    private static final int STATUS = 1;
+    private static final int TOTAL_SIZE = 2;
+    private static final int TOTAL_DONE = 3;
+    private static final int FLAGS = 4;
+    private static final int FIELDS = 5;
+
+    /** the download no longer matches the filter it was asked for with */
+    private static final long FLAG_REMOVED = 1;
+
+    private final long[] data;
+
+    public DlSnapshot(long[] data) {
+        this.data = data == null || data.length < HEADER ? new long[] { -1 } : data;
+    }
+
+    /**
+     * @param filter states not matching it are flagged as removed
+     */
+    public static long[] pack(long seq, List<DlState> states, int filter) {
+        long[] data = new long[HEADER + states.size() * FIELDS];
+        data[0] = seq;
+        int pos = HEADER;
+        for (DlState state : states) {
+            data[pos + ID] = state.getId();
+            data[pos + STATUS] = state.getStatus();
+            data[pos + TOTAL_SIZE] = state.getTotalSize();
+            data[pos + TOTAL_DONE] = state.getTotalDone();
+            data[pos + FLAGS] = state.matchesFilter(filter) ? 0 : FLAG_REMOVED;
+            pos += FIELDS;
+        }
+        return data;
+    }
+
+    public long getSeq() {
+        return data[0];
+    }
+
+    public int size() {
+        return (data.length - HEADER) / FIELDS;
+    }
+
+    public int getId(int pos) {
+        return (int) data[HEADER + pos * FIELDS + ID];
+    }
+
+    public int getStatus(int pos) {
+        return (int) data[HEADER + pos * FIELDS + STATUS];
+    }
+
+    public long getTotalSize(int pos) {
+        return data[HEADER + pos * FIELDS + TOTAL_SIZE];
+    }
+
+    public long getTotalDone(int pos) {
+        return data[HEADER + pos * FIELDS + TOTAL_DONE];
+    }
+
+    public boolean isRemoved(int pos) {
+        return (data[HEADER + pos * FIELDS + FLAGS] & FLAG_REMOVED) != 0;
+    }
+
+    /**
+     * Copies the entry's status and byte counts into state.
+     */
+    public void applyTo(int pos, DlState state) {
+        state.setStatus(getStatus(pos));
+        state.setTotalSize(getTotalSize(pos));
+        state.setTotalDone(getTotalDone(pos));
+    }
+}
@@ -17,10 +17,14 @@
 package com.otaupdater.utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import android.content.Context;
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -51,6 +55,10 @@ public class DlState implements Parcelable, Serializable {
     public static final int STATUS_COMPLETED = 9;
     public static final int STATUS_FAILED = 10;
 
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     public static final int FILTER_ALL = 0;
     public static final int FILTER_PENDING = 1;
     public static final int FILTER_RUNNING = 1 << 1;
@@ -61,24 +69,40 @@ public class DlState implements Parcelable, Serializable {
     public static final int FILTER_CANCELLED = 1 << 6;
     public static final int FILTER_FAILED = 1 << 7;
 
+    private static final AtomicLongFieldUpdater<DlState> TOTAL_DONE =
+            AtomicLongFieldUpdater.newUpdater(DlState.class, "totalDone");
+    private static final AtomicIntegerFieldUpdater<DlState> STATUS =
+            AtomicIntegerFieldUpdater.newUpdater(DlState.class, "status");
+
     private final RomInfo romInfo;
     private final KernelInfo kernelInfo;
 
     private transient DownloadTask task;
+    private transient volatile long changeSeq = 0;
 
+    // written by one thread at a time (usually the download thread) but read from
+    // binder threads too, hence volatile
     private int id;
-    private long totalSize = 0;
-    private long totalDone = 0;
-    private int status;
-    private int numRedirects = 0;
-    private String redirectedURL = null;
-    private int numFailed = 0;
-    private int retryAfter;
-    private String eTag;
-    private boolean pausing = false;
-    private boolean continuing = false;
-    private DownloadResult result = null;
-    private boolean oneTimeNotifShown = false;
+    private volatile long totalSize = 0;
+    private volatile long totalDone = 0;
+    private volatile int status;
+    private volatile int priority = PRIORITY_NORMAL;
+    private volatile int weight = Config.DL_DEFAULT_WEIGHT;
+    private volatile int numRedirects = 0;
+    private volatile String redirectedURL = null;
+    private volatile String mirrorURL = null;
+    private volatile int numFailed = 0;
+    private volatile int retryAfter;
+    private volatile long retryAt = 0;
+    private volatile String eTag;
+    private volatile String lastModified;
+    private volatile byte[] digestState = null;
+    private TransferStats transferStats = new TransferStats();
+    private volatile boolean pausing = false;
+    private volatile boolean continuing = false;
+    private volatile boolean deltaFailed = false;
+    private volatile DownloadResult result = null;
+    private volatile boolean oneTimeNotifShown = false;
 
     public DlState(RomInfo info) {
         romInfo = info;
@@ -96,15 +120,43 @@ public class DlState implements Parcelable, Serializable {
         status = STATUS_QUEUED;
         numRedirects = 0;
         redirectedURL = null;
+        mirrorURL = null;
         numFailed = 0;
         retryAfter = -1;
+        retryAt = 0;
         eTag = null;
+        lastModified = null;
+        digestState = null;
+        getTransferStats().reset();
         pausing = false;
         continuing = false;
+        deltaFailed = false;
         result = null;
         setOneTimeNotifShown(false);
     }
 
+    /**
+     * @return what identifies the file being downloaded: its md5 when we
+     *         know it, so the same file from another url is still the same,
+     *         otherwise its url
+     */
+    public String getContentKey() {
+        String type = isRomDownload() ? "rom:" : "kernel:";
+        String md5 = getMd5();
+        if (md5 != null && md5.trim().length() != 0) return type + "md5:" + md5.trim().toLowerCase();
+        return type + "url:" + (isRomDownload() ? romInfo.url : kernelInfo.url);
+    }
+
+    /**
+     * @return an id derived from {@link #getContentKey}, the same every time
+     *         and never 0 or negative
+     */
+    public int getContentId() {
+        String hash = Utils.md5(getContentKey());
+        int id = (int) (Long.parseLong(hash.substring(0, 8), 16) & 0x7FFFFFFF);
+        return id == 0 ? 1 : id;
+    }
+
     public boolean isRomDownload() {
         return romInfo != null;
     }
@@ -153,15 +205,63 @@ public class DlState implements Parcelable, Serializable {
 
     public String getSourceURL() {
         if (redirectedURL != null) return redirectedURL;
+        if (mirrorURL != null) return mirrorURL;
         if (isRomDownload()) return romInfo.url;
         if (isKernelDownload()) return kernelInfo.url;
         return null; //should never happen
     }
 
+    public String getRedirectURL() {
+        return redirectedURL;
+    }
+
     public void setRedirectURL(String url) {
         this.redirectedURL = url;
     }
 
+    /**
+     * @return the mirror the download was last fetched from, null for the main url
+     */
+    public String getMirrorURL() {
+        return mirrorURL;
+    }
+
+    /**
+     * Any redirect the old mirror gave still takes precedence, see {@link #switchMirror}.
+     */
+    public void setMirrorURL(String url) {
+        this.mirrorURL = url;
+    }
+
+    /**
+     * Moves the download to another mirror, forgetting any redirect the old one gave.
+     */
+    public void switchMirror(String url) {
+        this.redirectedURL = null;
+        this.mirrorURL = url;
+    }
+
+    /**
+     * @return the mirror being fetched from, before any redirect
+     */
+    public String getCurrentMirror() {
+        if (mirrorURL != null) return mirrorURL;
+        return isRomDownload() ? romInfo.url : kernelInfo.url;
+    }
+
+    /**
+     * @return the main url followed by any mirrors
+     */
+    public String[] getMirrorURLs() {
+        String url = isRomDownload() ? romInfo.url : kernelInfo.url;
+        String[] mirrors = isRomDownload() ? romInfo.mirrors : kernelInfo.mirrors;
+        int nMirrors = mirrors == null ? 0 : mirrors.length;
+        String[] urls = new String[1 + nMirrors];
+        urls[0] = url;
+        if (nMirrors != 0) System.arraycopy(mirrors, 0, urls, 1, nMirrors);
+        return urls;
+    }
+
     public File getDestFile() {
         if (isRomDownload()) return new File(Config.ROM_DL_PATH_FILE, romInfo.getDownloadFileName());
         if (isKernelDownload()) return new File(Config.KERNEL_DL_PATH_FILE, kernelInfo.getDownloadFileName());
@@ -198,15 +298,20 @@ public class DlState implements Parcelable, Serializable {
         this.totalDone = totalDone;
     }
 
+    /**
+     * Lock-free, called by every copy thread for every buffer. Progress
+     * callbacks are driven separately by {@link ProgressSampler}.
+     */
     public void incTotalDone(int inc) {
-        this.totalDone += inc;
+        TOTAL_DONE.addAndGet(this, inc);
     }
 
     public double getPctDone() {
-        return ((double) totalDone) / ((double) totalSize);
+        return ((double) getTotalDone()) / ((double) totalSize);
     }
 
     public String getProgressStr(Context ctx) {
+        long totalDone = getTotalDone();
         long scaledDone = totalDone;
         long scaledTotal = totalSize;
 
@@ -270,14 +375,102 @@ public class DlState implements Parcelable, Serializable {
         this.retryAfter = retryAfter;
     }
 
+    /**
+     * @return wall clock time a {@link #STATUS_PAUSED_RETRY} download may start again
+     */
+    public long getRetryAt() {
+        return retryAt;
+    }
+
+    public void setRetryAt(long retryAt) {
+        this.retryAt = retryAt;
+    }
+
     public int getStatus() {
         return status;
     }
 
+    /**
+     * Sets the status outright. Only for the service's main thread, and for
+     * states nobody else is looking at yet.
+     */
     public void setStatus(int status) {
         this.status = status;
     }
 
+    /**
+     * Moves from expect to status, if nothing else moved it meanwhile.
+     * What the service does when the user or the system acts on a running
+     * download.
+     */
+    public boolean compareAndSetStatus(int expect, int status) {
+        return STATUS.compareAndSet(this, expect, status);
+    }
+
+    /**
+     * Marks the download cancelled by the user, unless it has already ended.
+     *
+     * @return false if it had, or was cancelled already
+     */
+    public boolean markCancelled() {
+        // the download thread may be reporting its own end at the same time
+        while (true) {
+            int cur = this.status;
+            if (cur == STATUS_CANCELLED_USER ||
+                    cur == STATUS_COMPLETED ||
+                    cur == STATUS_FAILED) return false;
+            if (STATUS.compareAndSet(this, cur, STATUS_CANCELLED_USER)) return true;
+        }
+    }
+
+    /**
+     * Reports a status from the download itself. A download the user
+     * cancelled or paused, or the system paused, stays that way; whatever
+     * the download thread was about to say comes too late.
+     *
+     * @return false if the status was left alone
+     */
+    public boolean updateStatus(int status) {
+        while (true) {
+            int cur = this.status;
+            if (cur != status && isStoppedFromOutside(cur)) return false;
+            if (STATUS.compareAndSet(this, cur, status)) return true;
+        }
+    }
+
+    private static boolean isStoppedFromOutside(int status) {
+        return status == STATUS_CANCELLED_USER ||
+                status == STATUS_PAUSED_USER ||
+                status == STATUS_PAUSED_SYSTEM;
+    }
+
+    public long getChangeSeq() {
+        return changeSeq;
+    }
+
+    public void setChangeSeq(long changeSeq) {
+        this.changeSeq = changeSeq;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return this download's share of the rate limit while it runs, relative to the others, see {@link RateGovernor}
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, Math.min(Config.DL_MAX_WEIGHT, weight));
+    }
+
     public DownloadResult getResult() {
         return result;
     }
@@ -295,6 +488,41 @@ public class DlState implements Parcelable, Serializable {
         this.eTag = eTag;
     }
 
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return what to send as If-Range when resuming: the ETag if it's a
+     *         strong one, otherwise Last-Modified, or null if we have neither
+     */
+    public String getValidator() {
+        String tag = eTag;
+        if (tag != null && !tag.startsWith("W/")) return tag;
+        return lastModified;
+    }
+
+    /**
+     * @return exported {@link ResumableMd5} state covering the start of the file
+     */
+    public byte[] getDigestState() {
+        return digestState;
+    }
+
+    public void setDigestState(byte[] digestState) {
+        this.digestState = digestState;
+    }
+
+    public synchronized TransferStats getTransferStats() {
+        // states saved before stats existed come back without them
+        if (transferStats == null) transferStats = new TransferStats();
+        return transferStats;
+    }
+
     public boolean isPausing() {
         return pausing;
     }
@@ -311,6 +539,17 @@ public class DlState implements Parcelable, Serializable {
         this.continuing = continuing;
     }
 
+    /**
+     * @return true if building the file from a delta didn't work out, so the full file is fetched
+     */
+    public boolean isDeltaFailed() {
+        return deltaFailed;
+    }
+
+    public void setDeltaFailed(boolean deltaFailed) {
+        this.deltaFailed = deltaFailed;
+    }
+
     public int getNumRedirects() {
         return numRedirects;
     }
@@ -332,6 +571,10 @@ public class DlState implements Parcelable, Serializable {
     }
 
     public boolean matchesFilter(int filter) {
+        return matchesFilter(status, filter);
+    }
+
+    public static boolean matchesFilter(int status, int filter) {
         if (filter == FILTER_ALL) return true;
 
         if ((filter & FILTER_ACTIVE) != 0) {
@@ -391,21 +634,7 @@ public class DlState implements Parcelable, Serializable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(isRomDownload() ? 1 : (isKernelDownload() ? 2 : -1));
-        if (isRomDownload()) romInfo.writeToParcel(dest, flags);
-        if (isKernelDownload()) kernelInfo.writeToParcel(dest, flags);
-
-        dest.writeInt(id);
-        dest.writeLong(totalSize);
-        dest.writeLong(totalDone);
-        dest.writeInt(status);
-        dest.writeInt(numRedirects);
-        dest.writeString(redirectedURL);
-        dest.writeInt(numFailed);
-        dest.writeInt(retryAfter);
-        dest.writeString(eTag);
-        dest.writeByte((byte) (pausing ? 1 : 0));
-        dest.writeByte((byte) (continuing ? 1 : 0));
+        dest.writeByteArray(StateCodec.encode(this));
     }
 
     public static final Creator<DlState> CREATOR = new Creator<DlState>() {
@@ -416,33 +645,11 @@ public class DlState implements Parcelable, Serializable {
 
         @Override
         public DlState createFromParcel(Parcel source) {
-            int type = source.readInt();
-            if (type == -1) return null;
-
-            DlState state = null;
-            switch (type) {
-            case 1:
-                state = new DlState(RomInfo.CREATOR.createFromParcel(source));
-                break;
-            case 2:
-                state = new DlState(KernelInfo.CREATOR.createFromParcel(source));
-                break;
+            try {
+                return StateCodec.decodeState(source.createByteArray());
+            } catch (IOException e) {
+                throw new BadParcelableException(e);
             }
-            if (state == null) return null;
-
-            state.setId(source.readInt());
-            state.setTotalSize(source.readLong());
-            state.setTotalDone(source.readLong());
-            state.setStatus(source.readInt());
-            state.setNumRedirects(source.readInt());
-            state.setRedirectURL(source.readString());
-            state.setNumFailed(source.readInt());
-            state.setRetryAfter(source.readInt());
-            state.setETag(source.readString());
-            state.setPausing(source.readByte() == 1);
-            state.setContinuing(source.readByte() == 1);
-
-            return state;
         }
     };
 }
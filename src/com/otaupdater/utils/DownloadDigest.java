@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MD5 of a download, computed while it is written. Bytes written exactly at
+ * the hashed frontier are hashed straight from the copy buffer; anything that
+ * lands further ahead (other segments) is read back by {@link #catchUp} once
+ * the frontier reaches it, while the download is still running.
+ */
+class DownloadDigest {
+    private static final int CATCH_UP_CHUNK = 65536;
+
+    private final ResumableMd5 md5;
+
+    /**
+     * @param savedState digest state checkpointed into {@link DlState}, may be null
+     * @param durableEnd length of the prefix known to be intact on disk
+     */
+    DownloadDigest(byte[] savedState, long durableEnd) {
+        ResumableMd5 restored = ResumableMd5.fromState(savedState);
+        if (restored != null && restored.getLength() > durableEnd) restored = null;
+        md5 = restored == null ? new ResumableMd5() : restored;
+    }
+
+    synchronized long getLength() {
+        return md5.getLength();
+    }
+
+    /**
+     * Hashes freshly written bytes if they continue the hashed prefix.
+     */
+    synchronized void update(long pos, byte[] buf, int off, int len) {
+        if (pos == md5.getLength()) md5.update(buf, off, len);
+    }
+
+    /**
+     * Reads back and hashes whatever is already on disk between the hashed
+     * prefix and limit.
+     */
+    void catchUp(FileChannel channel, long limit) throws IOException {
+        ByteBuffer bb = null;
+        while (true) {
+            long pos = getLength();
+            if (pos >= limit) return;
+
+            if (bb == null) bb = ByteBuffer.allocate(CATCH_UP_CHUNK);
+            bb.clear();
+            bb.limit((int) Math.min(CATCH_UP_CHUNK, limit - pos));
+            int nRead = channel.read(bb, pos);
+            if (nRead <= 0) throw new IOException("short read at " + pos);
+            update(pos, bb.array(), 0, nRead);
+        }
+    }
+
+    synchronized byte[] getState() {
+        return md5.getState();
+    }
+
+    /**
+     * @return true if the whole file has been hashed and matches expected
+     */
+    synchronized boolean matches(String expected, long totalSize) {
+        if (md5.getLength() != totalSize) return false;
+        return Utils.byteArrToStr(md5.digest()).equalsIgnoreCase(expected.trim());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.otaupdater.IDownloadListener;
+
+/**
+ * Pushes download changes to registered {@link IDownloadListener}s, so
+ * clients don't have to poll the service for whole {@link DlState}s.
+ * Status changes always go out right away; progress goes out only when it
+ * moved, at most every {@link Config#DL_LISTENER_INTERVAL} ms per download.
+ *
+ * Safe to call from any thread.
+ */
+public class DownloadEvents {
+    private final RemoteCallbackList<IDownloadListener> listeners = new RemoteCallbackList<IDownloadListener>();
+
+    /** what listeners were last told about each download */
+    private final SparseArray<Sent> sent = new SparseArray<Sent>();
+
+    private static class Sent {
+        int status = -1;
+        long totalSize = -1;
+        long totalDone = -1;
+        long time = 0;
+    }
+
+    public void register(IDownloadListener listener) {
+        listeners.register(listener);
+    }
+
+    public void unregister(IDownloadListener listener) {
+        listeners.unregister(listener);
+    }
+
+    /**
+     * Sends the status of state if it changed, along with its progress.
+     */
+    public synchronized void stateChanged(DlState state) {
+        Sent last = getSent(state.getId());
+        int status = state.getStatus();
+        if (status != last.status) {
+            last.status = status;
+            broadcastStatus(state.getId(), status);
+        }
+        sendProgress(state, last);
+    }
+
+    /**
+     * Sends the progress of state, unless some went out for it too recently.
+     */
+    public synchronized void progressChanged(DlState state) {
+        Sent last = getSent(state.getId());
+        if (SystemClock.elapsedRealtime() - last.time < Config.DL_LISTENER_INTERVAL) return;
+        sendProgress(state, last);
+    }
+
+    public void kill() {
+        listeners.kill();
+    }
+
+    private Sent getSent(int id) {
+        Sent last = sent.get(id);
+        if (last == null) {
+            last = new Sent();
+            sent.put(id, last);
+        }
+        return last;
+    }
+
+    private void sendProgress(DlState state, Sent last) {
+        long totalSize = state.getTotalSize();
+        long totalDone = state.getTotalDone();
+        if (totalSize == last.totalSize && totalDone == last.totalDone) return;
+        last.totalSize = totalSize;
+        last.totalDone = totalDone;
+        last.time = SystemClock.elapsedRealtime();
+
+        int n = listeners.beginBroadcast();
+        for (int q = 0; q < n; q++) {
+            try {
+                listeners.getBroadcastItem(q).onProgress(state.getId(), totalSize, totalDone);
+            } catch (RemoteException e) {
+                // RemoteCallbackList drops dead listeners itself
+            }
+        }
+        listeners.finishBroadcast();
+    }
+
+    private void broadcastStatus(int id, int status) {
+        int n = listeners.beginBroadcast();
+        for (int q = 0; q < n; q++) {
+            try {
+                listeners.getBroadcastItem(q).onStatusChanged(id, status);
+            } catch (RemoteException e) { }
+        }
+        listeners.finishBroadcast();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Records which byte ranges of a partial download are known to be on disk.
+ * Lives next to the download as "&lt;file&gt;.journal" and is only ever
+ * replaced whole (write to a temp file, sync, rename), so a crash leaves
+ * either the old or the new checkpoint but never a torn one.
+ *
+ * Writers call {@link #markWritten} after every write; {@link #checkpoint}
+ * then syncs the data file first and only records what was marked before
+ * the sync, so every range in the journal really is durable.
+ */
+public class DownloadJournal {
+    private static final int MAGIC = 0x4f544a4c; //OTJL
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final File tmpFile;
+
+    private long totalSize = 0;
+    /** ETag or Last-Modified the ranges belong to */
+    private String validator = null;
+
+    /** sorted, non-overlapping, non-adjacent [start, end) pairs */
+    private final ArrayList<long[]> ranges = new ArrayList<long[]>();
+    private long lastCheckpointDone = 0;
+
+    public DownloadJournal(File dest) {
+        file = getJournalFile(dest);
+        tmpFile = new File(file.getPath() + ".tmp");
+    }
+
+    public static File getJournalFile(File dest) {
+        return new File(dest.getPath() + ".journal");
+    }
+
+    public synchronized void reset(long totalSize, String validator) {
+        this.totalSize = totalSize;
+        this.validator = validator;
+        ranges.clear();
+        lastCheckpointDone = 0;
+    }
+
+    /**
+     * @return false if there is no usable journal on disk
+     */
+    public synchronized boolean load() {
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) return false;
+
+            long size = is.readLong();
+            String tag = is.readBoolean() ? is.readUTF() : null;
+            int nRanges = is.readInt();
+            if (nRanges < 0) return false;
+
+            ArrayList<long[]> loaded = new ArrayList<long[]>(nRanges);
+            long prevEnd = -1;
+            for (int q = 0; q < nRanges; q++) {
+                long start = is.readLong();
+                long end = is.readLong();
+                if (start <= prevEnd || end <= start || end > size) return false;
+                loaded.add(new long[] { start, end });
+                prevEnd = end;
+            }
+
+            totalSize = size;
+            validator = tag;
+            ranges.clear();
+            ranges.addAll(loaded);
+            lastCheckpointDone = getDoneBytes();
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized String getValidator() {
+        return validator;
+    }
+
+    /**
+     * For when the same bytes now come from a server with other validators.
+     * Takes effect at the next checkpoint.
+     */
+    public synchronized void setValidator(String validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * @return true if everything on disk is one range from the start of the file
+     */
+    public synchronized boolean isContiguous() {
+        return ranges.isEmpty() || (ranges.size() == 1 && ranges.get(0)[0] == 0);
+    }
+
+    public synchronized void markWritten(long start, long end) {
+        if (end <= start) return;
+
+        int q = ranges.size();
+        // writes are almost always in order, so look from the back
+        while (q > 0 && ranges.get(q - 1)[0] > start) q--;
+
+        long[] range = new long[] { start, end };
+        if (q > 0 && ranges.get(q - 1)[1] >= start) {
+            range = ranges.get(q - 1);
+            if (end > range[1]) range[1] = end;
+            q--;
+        } else {
+            ranges.add(q, range);
+        }
+
+        while (q + 1 < ranges.size() && ranges.get(q + 1)[0] <= range[1]) {
+            long[] next = ranges.remove(q + 1);
+            if (next[1] > range[1]) range[1] = next[1];
+        }
+    }
+
+    public synchronized long getDoneBytes() {
+        long done = 0;
+        for (long[] range : ranges) done += range[1] - range[0];
+        return done;
+    }
+
+    /**
+     * @return how many bytes from the start of the file are done without a gap
+     */
+    public synchronized long getContiguousEnd() {
+        if (ranges.isEmpty() || ranges.get(0)[0] != 0) return 0;
+        return ranges.get(0)[1];
+    }
+
+    /**
+     * @return the [start, end) ranges still missing, in file order
+     */
+    public synchronized ArrayList<long[]> getGaps() {
+        ArrayList<long[]> gaps = new ArrayList<long[]>();
+        long pos = 0;
+        for (long[] range : ranges) {
+            if (range[0] > pos) gaps.add(new long[] { pos, range[0] });
+            pos = range[1];
+        }
+        if (pos < totalSize) gaps.add(new long[] { pos, totalSize });
+        return gaps;
+    }
+
+    /**
+     * @return bytes marked written since the last checkpoint
+     */
+    public synchronized long getUncommittedBytes() {
+        return getDoneBytes() - lastCheckpointDone;
+    }
+
+    /**
+     * @return true if {@link Config#DL_SYNC_POLICY} calls for a checkpoint now
+     */
+    public synchronized boolean isCheckpointDue() {
+        switch (Config.DL_SYNC_POLICY) {
+        case Config.DL_SYNC_EVERY_BLOCK:
+            return getUncommittedBytes() >= Config.DL_WRITE_BLOCK_SIZE;
+        case Config.DL_SYNC_PERIODIC:
+            return getUncommittedBytes() >= Config.DL_CHECKPOINT_BYTES;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Syncs the data file and then records everything marked so far as durable.
+     *
+     * @param data descriptor of the download target, or null if the caller already synced it
+     */
+    public void checkpoint(FileDescriptor data) throws IOException {
+        long size;
+        String tag;
+        ArrayList<long[]> snapshot;
+        synchronized (this) {
+            size = totalSize;
+            tag = validator;
+            snapshot = new ArrayList<long[]>(ranges.size());
+            long done = 0;
+            for (long[] range : ranges) {
+                snapshot.add(new long[] { range[0], range[1] });
+                done += range[1] - range[0];
+            }
+            lastCheckpointDone = done;
+        }
+
+        if (data != null) data.sync();
+
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream os = new DataOutputStream(fos);
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeLong(size);
+            os.writeBoolean(tag != null);
+            if (tag != null) os.writeUTF(tag);
+            os.writeInt(snapshot.size());
+            for (long[] range : snapshot) {
+                os.writeLong(range[0]);
+                os.writeLong(range[1]);
+            }
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("failed to replace " + file.getName());
+        }
+    }
+
+    public void delete() {
+        tmpFile.delete();
+        file.delete();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.SparseArray;
+
+/**
+ * Decides which queued downloads run next. Queued downloads are ordered by
+ * their {@link DlState#getPriority priority}, then by the configured
+ * {@link Config#getDlOrder order}, then first come first served. A download
+ * is only started while fewer than {@link Config#getMaxParallelDl} are
+ * running and its host still has a connection to spare.
+ *
+ * Only ever used from the service's main thread.
+ */
+public class DownloadScheduler {
+    private final Config cfg;
+
+    private final ArrayList<Entry> queue = new ArrayList<Entry>();
+    /** url each running download held its host connection for */
+    private final SparseArray<String> runningURLs = new SparseArray<String>();
+    private long nextSeq = 0;
+
+    public DownloadScheduler(Config cfg) {
+        this.cfg = cfg;
+        HostLimiter.setMaxPerHost(cfg.getMaxHostConnections());
+    }
+
+    public void add(DlState state) {
+        if (contains(state.getId())) return;
+        queue.add(new Entry(state, nextSeq++));
+    }
+
+    public boolean remove(int id) {
+        for (int q = 0; q < queue.size(); q++) {
+            if (queue.get(q).state.getId() == id) {
+                queue.remove(q);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(int id) {
+        for (Entry entry : queue) {
+            if (entry.state.getId() == id) return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+
+    /**
+     * @return the queued downloads, best candidate first
+     */
+    public List<DlState> getQueued() {
+        sort();
+        ArrayList<DlState> list = new ArrayList<DlState>(queue.size());
+        for (Entry entry : queue) list.add(entry.state);
+        return list;
+    }
+
+    /**
+     * @return ids of the queued downloads in the order they would start, for saving
+     */
+    public ArrayList<Integer> getQueuedIds() {
+        sort();
+        ArrayList<Integer> ids = new ArrayList<Integer>(queue.size());
+        for (Entry entry : queue) ids.add(entry.state.getId());
+        return ids;
+    }
+
+    /**
+     * @return the best queued download, or null if nothing is queued
+     */
+    public DlState peek() {
+        if (queue.isEmpty()) return null;
+        sort();
+        return queue.get(0).state;
+    }
+
+    /**
+     * @return true if there is room to start state next to nRunning other downloads
+     */
+    public boolean canStart(DlState state, int nRunning) {
+        if (nRunning >= Math.max(1, cfg.getMaxParallelDl())) return false;
+        return HostLimiter.hasRoom(HostLimiter.getHost(state.getSourceURL()));
+    }
+
+    /**
+     * Takes state off the queue and holds a connection to its host for it
+     * until {@link #onStopped} is called.
+     *
+     * @return false if its host has no connection to spare after all
+     */
+    public boolean onStarted(DlState state) {
+        String url = state.getSourceURL();
+        if (!HostLimiter.tryAcquire(HostLimiter.getHost(url))) return false;
+        runningURLs.put(state.getId(), url);
+        remove(state.getId());
+        return true;
+    }
+
+    /**
+     * Moves the connection held for state over to the host it's actually
+     * fetching from, after a redirect or a move to another mirror.
+     */
+    public void onProgress(DlState state) {
+        String held = runningURLs.get(state.getId());
+        String url = state.getSourceURL();
+        if (held == null || held.equals(url)) return;
+        runningURLs.put(state.getId(), url);
+
+        String from = HostLimiter.getHost(held);
+        String to = HostLimiter.getHost(url);
+        if (from.equals(to)) return;
+        HostLimiter.release(from);
+        // the download is already talking to it, so this may go over the limit
+        HostLimiter.acquire(to);
+    }
+
+    public void onStopped(DlState state) {
+        String url = runningURLs.get(state.getId());
+        if (url == null) return;
+        runningURLs.delete(state.getId());
+        HostLimiter.release(HostLimiter.getHost(url));
+    }
+
+    public void setMaxHostConnections(int max) {
+        max = Math.max(1, max);
+        cfg.setMaxHostConnections(max);
+        HostLimiter.setMaxPerHost(max);
+    }
+
+    private void sort() {
+        final int order = cfg.getDlOrder();
+        Collections.sort(queue, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                if (lhs.state.getPriority() != rhs.state.getPriority()) {
+                    return lhs.state.getPriority() > rhs.state.getPriority() ? -1 : 1;
+                }
+
+                if (order == Config.DL_ORDER_KERNEL_FIRST) {
+                    boolean lKernel = lhs.state.isKernelDownload();
+                    boolean rKernel = rhs.state.isKernelDownload();
+                    if (lKernel != rKernel) return lKernel ? -1 : 1;
+                } else if (order == Config.DL_ORDER_SMALLEST_FIRST) {
+                    long lSize = getSortSize(lhs.state);
+                    long rSize = getSortSize(rhs.state);
+                    if (lSize != rSize) return lSize < rSize ? -1 : 1;
+                }
+
+                return lhs.seq < rhs.seq ? -1 : (lhs.seq == rhs.seq ? 0 : 1);
+            }
+        });
+    }
+
+    private static long getSortSize(DlState state) {
+        long left = state.getTotalSize() - state.getTotalDone();
+        // nothing known yet, guess from the type: kernels are tiny next to ROMs
+        if (state.getTotalSize() == 0) return state.isKernelDownload() ? Long.MAX_VALUE - 1 : Long.MAX_VALUE;
+        return left;
+    }
+
+    private static class Entry {
+        final DlState state;
+        final long seq;
+
+        Entry(DlState state, long seq) {
+            this.state = state;
+            this.seq = seq;
+        }
+    }
+}
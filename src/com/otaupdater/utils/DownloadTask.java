@@ -16,13 +16,21 @@
 
 package com.otaupdater.utils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipException;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
@@ -31,16 +39,19 @@ import org.apache.commons.net.ftp.FTPReply;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 
 import android.content.Context;
 import android.net.Uri;
 import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
-import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.otaupdater.DownloadService;
 import com.otaupdater.utils.DownloadTask.DownloadResult;
+import com.otaupdater.utils.NetworkMonitor.NetState;
 
 public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
     private Context context;
@@ -49,9 +60,19 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
 
     private DlState state;
 
+    private final NetworkMonitor network;
+    private final Config cfg;
+    /** network state, size and settings the callback last approved */
+    private volatile NetState checkedNet = null;
+    private volatile long checkedSize = -1;
+    private volatile int checkedPolicy = -1;
+
     private boolean active = false;
     private boolean pausing = false;
 
+    /** this download's share of the rate limit while doInBackground runs */
+    private RateGovernor.Bucket rateBucket = null;
+
     public DownloadTask(DlState state, Context ctx) {
         this(state, ctx, null);
     }
@@ -60,6 +81,8 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         this.state = state;
         this.callback = callback;
         this.context = ctx;
+        this.network = NetworkMonitor.getInstance(ctx);
+        this.cfg = Config.getInstance(ctx);
 
         state.setTask(this);
     }
@@ -72,6 +95,17 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         return state;
     }
 
+    Context getContext() {
+        return context;
+    }
+
+    /**
+     * @return a {@link RateGovernor.Lane} for one thread reading for this download
+     */
+    RateGovernor.Lane newRateLane() {
+        return rateBucket.newLane();
+    }
+
     @Override
     protected void onPreExecute() {
         active = true;
@@ -84,115 +118,209 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         FTPClient ftpc = null;
 
         InputStream in = null;
-        OutputStream out = null;
+        RandomAccessFile out = null;
+        DownloadJournal journal = null;
+        DownloadDigest digest = null;
+        ProgressSampler progress = ProgressSampler.start(this);
+        rateBucket = RateGovernor.register(state);
         try {
             File dest = state.getDestFile();
             File dir = dest.getParentFile();
             if (dir == null) {
-                state.setStatus(DlState.STATUS_FAILED);
+                state.updateStatus(DlState.STATUS_FAILED);
                 return state.setResult(DownloadResult.FAILED_MOUNT_NOT_AVAILABLE);
             }
             dir.mkdirs();
             if (!dir.exists()) {
-                state.setStatus(DlState.STATUS_FAILED);
+                state.updateStatus(DlState.STATUS_FAILED);
                 return state.setResult(DownloadResult.FAILED_MOUNT_NOT_AVAILABLE);
             }
 
+            journal = new DownloadJournal(dest);
+            ArrayList<long[]> resumeGaps = null;
             if (dest.exists()) {
                 if (dest.length() == 0) {
                     dest.delete();
-                } else if (state.getTotalDone() == state.getTotalSize() && dest.length() == state.getTotalDone()) {
-                    state.setStatus(DlState.STATUS_COMPLETED);
+                    journal.delete();
+                } else if (state.getTotalDone() == state.getTotalSize() && dest.length() == state.getTotalDone() &&
+                        !DownloadJournal.getJournalFile(dest).exists() && isVerifiedCopy(dest)) {
+                    // files are preallocated, so only a verified one with its journal gone is really done;
+                    // anything else resumes from the journal, which checks the md5 at the end
+                    state.updateStatus(DlState.STATUS_COMPLETED);
                     return state.setResult(DownloadResult.FINISHED);
-                } else {
-                    if (dest.length() != state.getTotalDone()) {
-                        dest.delete();
+                } else if (journal.load() && journal.getTotalSize() == state.getTotalSize() &&
+                        (state.getValidator() == null
+                                // only a contiguous file can have its tail checked instead
+                                ? journal.getValidator() == null && journal.isContiguous()
+                                : state.getValidator().equals(journal.getValidator()))) {
+                    // the journal only lists synced ranges, anything else in the file is suspect
+                    long contiguous = journal.getContiguousEnd();
+                    ArrayList<long[]> gaps = journal.getGaps();
+                    Log.v(Config.LOG_TAG + "DLTask", "resuming from journal, " + journal.getDoneBytes() + " bytes in " + gaps.size() + " gaps");
+                    state.setTotalDone(journal.getDoneBytes());
+                    state.setContinuing(true);
+                    // SegmentedDownload counts on this too, it doesn't reserve itself
+                    DiskSpace.reserve(dest, state.getTotalSize());
+                    if (gaps.size() == 1 && gaps.get(0)[0] == contiguous) {
+                        out = new RandomAccessFile(dest, "rw");
                     } else {
-                        if (state.getETag() == null) {
-                            dest.delete();
-                        } else {
-                            state.setContinuing(true);
-                            out = new FileOutputStream(dest, true);
-                        }
+                        resumeGaps = gaps;
                     }
+                } else if (state.getTotalDone() == 0 && !DownloadJournal.getJournalFile(dest).exists() &&
+                        isVerifiedCopy(dest)) {
+                    // the same file finished before, for a download that's since been cleared
+                    Log.v(Config.LOG_TAG + "DLTask", "already have " + dest.getName());
+                    state.setTotalSize(dest.length());
+                    state.setTotalDone(dest.length());
+                    publishProgress(true);
+                    state.updateStatus(DlState.STATUS_COMPLETED);
+                    return state.setResult(DownloadResult.FINISHED);
+                } else if (dest.length() == state.getTotalDone()) {
+                    // no journal yet, trust the saved state like we used to
+                    state.setContinuing(true);
+                    journal.reset(state.getTotalSize(), state.getValidator());
+                    journal.markWritten(0, state.getTotalDone());
+                    if (state.getTotalSize() != 0) DiskSpace.reserve(dest, state.getTotalSize());
+                    out = new RandomAccessFile(dest, "rw");
+                } else {
+                    dest.delete();
+                    journal.delete();
+                }
+            } else {
+                journal.delete();
+            }
+
+            if (!state.isContinuing()) {
+                digest = new DownloadDigest(null, 0);
+            } else if (resumeGaps != null) {
+                // SegmentedDownload reads back whatever the saved digest doesn't cover
+                digest = new DownloadDigest(state.getDigestState(), journal.getContiguousEnd());
+            } else {
+                digest = new DownloadDigest(state.getDigestState(), state.getTotalDone());
+                if (digest.getLength() < state.getTotalDone()) {
+                    Log.v(Config.LOG_TAG + "DLTask", "rehashing " + (state.getTotalDone() - digest.getLength()) + " bytes not covered by saved digest");
+                    FileInputStream fis = new FileInputStream(dest);
+                    try { digest.catchUp(fis.getChannel(), state.getTotalDone()); }
+                    finally { fis.close(); }
                 }
             }
 
             if (callback != null) {
+                markChecked();
                 int checkResult = callback.onCheckContinue(state);
                 if (checkResult != 0) {
                     if (checkResult == DownloadService.STOP_NO_WIFI) {
-                        state.setStatus(DlState.STATUS_PAUSED_FOR_WIFI);
+                        state.updateStatus(DlState.STATUS_PAUSED_FOR_WIFI);
                         return state.setResult(DownloadResult.PAUSED);
                     }
                     if (checkResult == DownloadService.STOP_NO_DATA) {
-                        state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
+                        state.updateStatus(DlState.STATUS_PAUSED_FOR_DATA);
                         return state.setResult(DownloadResult.PAUSED);
                     }
                 }
             }
 
+            if (!state.isContinuing() && state.isRomDownload() && !state.isDeltaFailed()) {
+                File base = DeltaPatcher.getBaseFile(state.getRomInfo());
+                String md5 = state.getMd5();
+                // without the md5 there'd be no telling whether the patch worked
+                if (base != null && md5 != null && md5.length() != 0) {
+                    DownloadResult result = applyDelta(base, dest);
+                    if (result != null) return result;
+                }
+            }
+
+            MirrorPool mirrors = MirrorPool.create(context, state);
+            if (mirrors != null) {
+                mirrors.probe(state.getTotalSize());
+                String best = mirrors.best();
+                // a download under way stays where it is unless that mirror is no good
+                if (best != null && !best.equals(state.getCurrentMirror()) &&
+                        (!state.isContinuing() || !mirrors.isGood(state.getCurrentMirror()))) {
+                    Log.v(Config.LOG_TAG + "DLTask", "fetching from mirror " + best);
+                    switchMirror(best, journal);
+                }
+            }
+
+            if (!state.isContinuing() && state.isRomDownload() && state.getSourceURL().startsWith("http:")) {
+                File old = state.getRomInfo().getInstalledRomFile();
+                String md5 = state.getMd5();
+                if (old != null && !old.equals(dest) && md5 != null && md5.length() != 0) {
+                    DownloadResult result = reuseBlocks(old, dest, journal, mirrors);
+                    if (result != null) return result;
+                }
+            }
+
+            HttpReconnector reconnector = null;
             Uri dlUri = Uri.parse(state.getSourceURL());
-            if (dlUri.getScheme().equals("http")) {
+            if (resumeGaps != null && dlUri.getScheme().equals("http")) {
+                publishProgress(true);
+                DownloadResult result = new SegmentedDownload(this, state, dest, context, journal, digest, mirrors).resume(resumeGaps);
+                if (result == DownloadResult.FINISHED) result = finishDownload(dest, journal, digest);
+                return result;
+            } else if (dlUri.getScheme().equals("http")) {
                 httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
                 HttpResponse resp = null;
+                HttpGet req = null;
+                boolean rangesSupported = false;
+                int tailCheck = 0;
                 while (true) {
-                    HttpGet req = null;
                     boolean success = false;
                     try {
                         req = new HttpGet(state.getSourceURL());
+                        tailCheck = 0;
                         if (state.isContinuing()) {
-                            req.addHeader("If-Match", state.getETag());
-                            req.addHeader("Range", "bytes=" + state.getTotalDone() + "-");
+                            long from = state.getTotalDone();
+                            if (state.getValidator() != null) {
+                                // a changed file comes back whole instead of being spliced on
+                                req.addHeader("If-Range", state.getValidator());
+                            } else {
+                                // nothing vouches for what we have, so fetch some of it again to compare
+                                tailCheck = (int) Math.min(from, Config.DL_TAIL_CHECK_SIZE);
+                                from -= tailCheck;
+                            }
+                            req.addHeader("Range", "bytes=" + from + "-");
+                        } else {
+                            // costs nothing, and a 206 tells us we can split the download
+                            req.addHeader("Range", "bytes=0-");
                         }
                         resp = httpc.execute(req);
 
                         int statusCode = resp.getStatusLine().getStatusCode();
-                        if (statusCode == 503) {
-                            if (state.getNumFailed() >= Config.DL_MAX_RETRIES) {
-                                state.setStatus(DlState.STATUS_FAILED);
-                                return state.setResult(DownloadResult.FAILED_TOO_MANY_RETRIES);
-                            }
-                            Header header = resp.getFirstHeader("Retry-After");
-                            if (header == null) {
-                                state.setRetryAfter(Config.DL_RETRY_MIN * (1 << state.getNumFailed()));
-                            } else {
-                                int retry = Integer.parseInt(header.getValue());
-                                if (retry < 0) {
-                                    state.setRetryAfter(Config.DL_RETRY_MIN);
-                                } else {
-                                    if (retry < Config.DL_RETRY_MIN) retry = Config.DL_RETRY_MIN;
-                                    if (retry > Config.DL_RETRY_MAX) retry = Config.DL_RETRY_MAX;
-                                    retry += (int) (Config.DL_RETRY_MIN * Math.random());
-                                    state.setRetryAfter(retry);
-                                }
-                            }
-                            state.incNumFailed();
-                            state.setStatus(DlState.STATUS_PAUSED_RETRY);
-                            return state.setResult(DownloadResult.RETRY_LATER);
+                        if (isRetryable(statusCode)) {
+                            Log.v(Config.LOG_TAG + "DLTask", "server busy (" + statusCode + "), retrying later");
+                            return retryLater(resp.getFirstHeader("Retry-After"));
                         }
                         if (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307) {
                             if (state.getNumRedirects() >= Config.DL_MAX_REDIRECTS) {
-                                state.setStatus(DlState.STATUS_FAILED);
+                                state.updateStatus(DlState.STATUS_FAILED);
                                 return state.setResult(DownloadResult.FAILED_TOO_MANY_REDIRECTS);
                             }
                             Header header = resp.getFirstHeader("Location");
                             if (header == null) {
-                                state.setStatus(DlState.STATUS_FAILED);
+                                state.updateStatus(DlState.STATUS_FAILED);
                                 return state.setResult(DownloadResult.FAILED_PROTOCAL_ERROR);
                             }
                             String newUri;
                             try {
                                 newUri = new URI(state.getSourceURL()).resolve(new URI(header.getValue())).toString();
                             } catch (URISyntaxException e) {
-                                state.setStatus(DlState.STATUS_FAILED);
+                                state.updateStatus(DlState.STATUS_FAILED);
                                 return state.setResult(DownloadResult.FAILED_PROTOCAL_ERROR);
                             }
                             state.incNumRedirects();
                             state.setRedirectURL(newUri);
                         }
-                        if (statusCode != (state.isContinuing() ? 206 : 200)) {
-                            state.setStatus(DlState.STATUS_FAILED);
+                        if (state.isContinuing() && (statusCode == 200 || statusCode == 416 ||
+                                (statusCode == 206 && !sameTotalSize(resp)))) {
+                            Log.v(Config.LOG_TAG + "DLTask", "file changed on server (" + statusCode + "), starting over");
+                            out = discardPartial(dest, journal, out);
+                            digest = new DownloadDigest(null, 0);
+                            continue;
+                        }
+                        rangesSupported = statusCode == 206;
+                        if (statusCode != 206 && (state.isContinuing() || statusCode != 200)) {
+                            state.updateStatus(DlState.STATUS_FAILED);
                             if (statusCode == 416 || (state.isContinuing() && statusCode != 206)) {
                                 return state.setResult(DownloadResult.FAILED_CANNOT_RESUME);
                             } else if (statusCode >= 300 && statusCode < 400) {
@@ -204,13 +332,31 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                             }
                         }
 
+                        if (tailCheck != 0) {
+                            in = resp.getEntity().getContent();
+                            if (!matchesFile(in, dest, state.getTotalDone() - tailCheck, tailCheck)) {
+                                Log.v(Config.LOG_TAG + "DLTask", "tail of partial file doesn't match, starting over");
+                                in = null;
+                                out = discardPartial(dest, journal, out);
+                                digest = new DownloadDigest(null, 0);
+                                continue;
+                            }
+                        }
+
                         success = true;
                         break;
                     } catch (IllegalArgumentException e) {
-                        state.setStatus(DlState.STATUS_FAILED);
+                        state.updateStatus(DlState.STATUS_FAILED);
                         return state.setResult(DownloadResult.FAILED_PROTOCAL_ERROR);
+                    } catch (InterruptedIOException e) {
+                        // also what cancel(true) interrupting us looks like
+                        DownloadResult stop = checkInterrupted();
+                        if (stop != null) return stop;
+                        // otherwise a connect or read timeout, most likely an overloaded server
+                        Log.v(Config.LOG_TAG + "DLTask", "timed out (" + e.getMessage() + "), retrying later");
+                        return retryLater(null);
                     } catch (IOException e) {
-                        state.setStatus(DlState.STATUS_FAILED);
+                        state.updateStatus(DlState.STATUS_FAILED);
                         return state.setResult(DownloadResult.FAILED_NETWORK_ERROR);
                     } finally {
                         if (req != null && !success) {
@@ -222,7 +368,9 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
 
                 if (!state.isContinuing()) {
                     Header header = resp.getFirstHeader("ETag");
-                    if (header != null) state.setETag(header.getValue());
+                    state.setETag(header == null ? null : header.getValue());
+                    header = resp.getFirstHeader("Last-Modified");
+                    state.setLastModified(header == null ? null : header.getValue());
 
                     String headerTransferEncoding = null;
                     header = resp.getFirstHeader("Transfer-Encoding");
@@ -238,20 +386,28 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                     }
 
                     if (state.getTotalSize() != 0) {
-                        StatFs stat = new StatFs(dir.getAbsolutePath());
-                        long availSpace = ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
-                        if (state.getTotalSize() >= availSpace) {
-                            state.setStatus(DlState.STATUS_FAILED);
-                            return state.setResult(DownloadResult.FAILED_NOT_ENOUGH_SPACE);
-                        }
+                        DiskSpace.reserve(dest, state.getTotalSize());
+                        journal.reset(state.getTotalSize(), state.getValidator());
+                    } else {
+                        DiskSpace.reserve(dest, 0);
+                        journal = null;
                     }
 
-                    out = new FileOutputStream(dest, false);
+                    if (journal != null && rangesSupported && state.getTotalSize() >= Config.DL_SEGMENT_MIN_SIZE) {
+                        InputStream firstIn = resp.getEntity().getContent();
+                        DownloadResult result = new SegmentedDownload(this, state, dest, context, journal, digest, mirrors).run(req, firstIn);
+                        if (result == DownloadResult.FINISHED) result = finishDownload(dest, journal, digest);
+                        return result;
+                    }
+
+                    out = new RandomAccessFile(dest, "rw");
                 } else {
+                    adoptValidators(resp, journal);
                     publishProgress(true);
                 }
 
-                in = resp.getEntity().getContent();
+                if (in == null) in = resp.getEntity().getContent();
+                if (rangesSupported) reconnector = new HttpReconnector(httpc, req, mirrors, journal);
             } else if (dlUri.getScheme().equals("ftp")) {
                 ftpc = new FTPClient();
 
@@ -262,7 +418,7 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 }
 
                 if (!FTPReply.isPositiveCompletion(ftpc.getReplyCode())) {
-                    state.setStatus(DlState.STATUS_FAILED);
+                    state.updateStatus(DlState.STATUS_FAILED);
                     return state.setResult(DownloadResult.FAILED_CONNECTION_REFUSED);
                 }
 
@@ -275,7 +431,7 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 }
 
                 if (!loginRes) {
-                    state.setStatus(DlState.STATUS_FAILED);
+                    state.updateStatus(DlState.STATUS_FAILED);
                     return state.setResult(DownloadResult.FAILED_FTP_LOGIN_ERROR);
                 }
 
@@ -288,20 +444,15 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 } else {
                     FTPFile[] files = ftpc.listFiles(dlUri.getPath());
                     if (files == null || files.length == 0) {
-                        state.setStatus(DlState.STATUS_FAILED);
+                        state.updateStatus(DlState.STATUS_FAILED);
                         return state.setResult(DownloadResult.FAILED_FILE_NOT_FOUND);
                     } else {
                         state.setTotalSize(files[0].getSize());
                         publishProgress(true);
 
-                        StatFs stat = new StatFs(dir.getAbsolutePath());
-                        long availSpace = ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
-                        if (state.getTotalSize() >= availSpace) {
-                            state.setStatus(DlState.STATUS_FAILED);
-                            return state.setResult(DownloadResult.FAILED_NOT_ENOUGH_SPACE);
-                        }
-
-                        out = new FileOutputStream(dest, false);
+                        DiskSpace.reserve(dest, state.getTotalSize());
+                        journal.reset(state.getTotalSize(), state.getValidator());
+                        out = new RandomAccessFile(dest, "rw");
                     }
                 }
 
@@ -310,82 +461,51 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 Log.e(Config.LOG_TAG + "DLTask", "invalid scheme " + dlUri.getScheme());
             }
 
-            byte[] buf = new byte[4096];
-            while (true) {
-                if (this.isCancelled()) {
-                    if (pausing) {
-                        Log.v(Config.LOG_TAG + "DLTask", "pausing - user request");
-                        state.setStatus(DlState.STATUS_PAUSED_USER);
-                        return state.setResult(DownloadResult.PAUSED);
-                    } else {
-                        Log.v(Config.LOG_TAG + "DLTask", "cancel - user request");
-                        state.setStatus(DlState.STATUS_CANCELLED_USER);
-                        return state.setResult(DownloadResult.CANCELLED);
-                    }
-                } else if (callback != null) {
-                    int check = callback.onCheckContinue(state);
-                    if (check != 0) {
-                        if (check == DownloadService.STOP_NO_WIFI) {
-                            Log.v(Config.LOG_TAG + "DLTask", "pausing - need wifi");
-                            state.setStatus(DlState.STATUS_PAUSED_FOR_WIFI);
-                            return state.setResult(DownloadResult.PAUSED);
-                        }
-                        if (check == DownloadService.STOP_NO_DATA) {
-                            Log.v(Config.LOG_TAG + "DLTask", "pausing - need data");
-                            state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
-                            return state.setResult(DownloadResult.PAUSED);
-                        }
-                    }
-                }
-
-                int nRead = -1;
-                try {
-                    nRead = in.read(buf);
-                } catch (IOException e) {
-                    boolean data = Utils.dataAvailable(context);
-                    Log.w(Config.LOG_TAG + "DLTask", "IOException reading - connected=" + data);
-
-                    if (!data) {
-                        Log.v(Config.LOG_TAG + "DLTask", "pausing - need data");
-                        state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
-                        return state.setResult(DownloadResult.PAUSED);
-                    }
-                    continue;
-                }
-
-                if (nRead == -1) break;
-
-                out.write(buf, 0, nRead);
-                state.incTotalDone(nRead);
-                publishProgress();
-            }
+            DownloadResult stop = new StreamPipeline(this, state, out, journal, digest, reconnector).run(in);
+            if (reconnector != null) reconnector.recordMirrorStats(state.getTotalDone());
+            if (stop != null) return stop;
 
             if (state.getTotalSize() != state.getTotalDone() && state.getTotalSize() != 0) {
-                Log.w(Config.LOG_TAG + "DLTask", "size mismatch after download");
-                //TODO size mismatch - fail?
+                // the file is preallocated, so finishing now would pass off the padding as data;
+                // the journal stays and the next attempt resumes from it
+                Log.w(Config.LOG_TAG + "DLTask", "stream ended at " + state.getTotalDone() + " of " + state.getTotalSize() + ", retrying later");
+                return retryLater(null);
             }
 
-            state.setStatus(DlState.STATUS_COMPLETED);
-            return state.setResult(DownloadResult.FINISHED);
+            out.close();
+            out = null;
+            return finishDownload(dest, journal, digest);
+        } catch (DiskSpace.NoSpaceException e) {
+            Log.v(Config.LOG_TAG + "DLTask", "not enough space: " + e.getMessage());
+            state.updateStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_NOT_ENOUGH_SPACE);
         } catch (IOException e) {
             //Log.w(Config.LOG_TAG + "DLTask", "IOException: " + e.getMessage());
             e.printStackTrace();
-            state.setStatus(DlState.STATUS_FAILED);
+            state.updateStatus(DlState.STATUS_FAILED);
             return state.setResult(DownloadResult.FAILED_NETWORK_ERROR);
         } catch (Exception e) {
             //Log.w(Config.LOG_TAG + "DLTask", "Exception (" + e.getClass().getName() + "): " + e.getMessage());
             e.printStackTrace();
-            state.setStatus(DlState.STATUS_FAILED);
+            state.updateStatus(DlState.STATUS_FAILED);
             return state.setResult(DownloadResult.FAILED_UNKNOWN);
         } finally {
+            progress.stop();
+            RateGovernor.unregister(rateBucket);
+
             if (in != null) {
                 try { in.close(); }
                 catch (IOException e) { }
             }
 
             if (out != null) {
-                try { out.flush(); out.close(); }
-                catch (IOException e) { }
+                try {
+                    if (journal != null && state.getResult() != DownloadResult.FINISHED) {
+                        journal.checkpoint(out.getFD());
+                        state.setDigestState(digest.getState());
+                    }
+                    out.close();
+                } catch (IOException e) { }
             }
 
             if (httpc != null) {
@@ -406,6 +526,558 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         }
     }
 
+    /**
+     * Reopens an http download partway through with a Range request. The
+     * ETag goes in If-Range so a changed file comes back whole (and is
+     * refused) instead of being spliced onto what we have.
+     *
+     * With mirrors, a mirror that fails {@link Config#DL_MIRROR_SWITCH_FAILURES}
+     * times at the same offset is given up on and the download moves to the
+     * next best one; there the size has to match, and the md5 does the rest.
+     */
+    private class HttpReconnector implements StreamPipeline.Reconnector {
+        private final AndroidHttpClient httpc;
+        private final MirrorPool mirrors;
+        private final DownloadJournal journal;
+        private HttpGet req;
+
+        private long lastOffset = -1;
+        private int failures = 0;
+
+        /** where and when we started on the current mirror, for {@link MirrorStats} */
+        private long mirrorStart;
+        private long mirrorSince = SystemClock.elapsedRealtime();
+
+        /**
+         * @param mirrors may be null
+         * @param journal may be null
+         */
+        HttpReconnector(AndroidHttpClient httpc, HttpGet req, MirrorPool mirrors, DownloadJournal journal) {
+            this.httpc = httpc;
+            this.req = req;
+            this.mirrors = mirrors;
+            this.journal = journal;
+            mirrorStart = state.getTotalDone();
+        }
+
+        @Override
+        public InputStream reopen(long offset) throws IOException {
+            // frees the broken connection, the client only has so many
+            if (req != null) req.abort();
+
+            if (offset != lastOffset) failures = 0;
+            lastOffset = offset;
+            if (mirrors != null && (++failures > Config.DL_MIRROR_SWITCH_FAILURES ||
+                    !mirrors.isGood(state.getCurrentMirror()))) {
+                String next = mirrors.failover(state.getCurrentMirror());
+                if (next != null && !next.equals(state.getCurrentMirror())) {
+                    Log.v(Config.LOG_TAG + "DLTask", "moving to mirror " + next + " at " + offset);
+                    recordMirrorStats(offset);
+                    switchMirror(next, journal);
+                    failures = 0;
+                }
+            }
+
+            req = new HttpGet(state.getSourceURL());
+            req.addHeader("Range", "bytes=" + offset + "-");
+            if (state.getValidator() != null) req.addHeader("If-Range", state.getValidator());
+
+            HttpResponse resp = httpc.execute(req);
+            int statusCode = resp.getStatusLine().getStatusCode();
+            if (statusCode == 206 && state.getValidator() == null && state.getTotalSize() != 0 &&
+                    getRangeTotal(resp) != state.getTotalSize()) {
+                // a new mirror with a different file, try the next one
+                req.abort();
+                req = null;
+                if (mirrors != null) mirrors.failover(state.getCurrentMirror());
+                throw new IOException("mirror has a different file");
+            }
+            if (statusCode == 206) {
+                adoptValidators(resp, journal);
+                return resp.getEntity().getContent();
+            }
+
+            req.abort();
+            req = null;
+            // server trouble may pass, anything else means we can't resume here
+            if (statusCode >= 500) throw new IOException("HTTP " + statusCode + " reconnecting");
+            return null;
+        }
+
+        /**
+         * Credits the current mirror with everything up to pos.
+         */
+        void recordMirrorStats(long pos) {
+            long now = SystemClock.elapsedRealtime();
+            if (mirrors != null) mirrors.recordTransfer(state.getCurrentMirror(), pos - mirrorStart, now - mirrorSince);
+            mirrorStart = pos;
+            mirrorSince = now;
+        }
+    }
+
+    /**
+     * Tries to build dest from base and the ROM's delta patch rather than
+     * downloading the whole file. The patch is applied as it downloads and
+     * the result has to match the full file's md5. A busy server or a
+     * timeout puts the download off like any other; a refused request, a
+     * bad patch or no room for the patched file gives up on the delta.
+     *
+     * @return the result to finish with, or null to download the full file
+     */
+    private DownloadResult applyDelta(File base, File dest) {
+        File tmp = new File(dest.getPath() + ".delta");
+        AndroidHttpClient httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
+        HttpGet req = new HttpGet(state.getRomInfo().deltaUrl);
+        RandomAccessFile old = null;
+        RandomAccessFile raf = null;
+        OutputStream out = null;
+        DownloadResult result = null;
+        boolean built = false;
+        try {
+            HttpResponse resp = httpc.execute(req);
+            int statusCode = resp.getStatusLine().getStatusCode();
+            if (statusCode >= 400 && statusCode < 500 && statusCode != 429) {
+                throw new DeltaPatcher.BadPatchException("HTTP " + statusCode + " fetching patch");
+            }
+            if (statusCode != 200) {
+                Log.v(Config.LOG_TAG + "DLTask", "patch server busy (" + statusCode + ")");
+                result = retryDelta(resp.getFirstHeader("Retry-After"));
+                return result;
+            }
+
+            // progress is shown for the patch, it's all we download
+            long patchSize = 0;
+            Header header = resp.getFirstHeader("Content-Length");
+            if (header != null) {
+                try { patchSize = Long.parseLong(header.getValue()); }
+                catch (NumberFormatException e) { }
+            }
+            state.setTotalSize(patchSize);
+            state.setTotalDone(0);
+            publishProgress(true);
+
+            Log.v(Config.LOG_TAG + "DLTask", "patching " + base.getName() + " with a " + patchSize + " byte delta");
+            final RateGovernor.Lane lane = newRateLane();
+            InputStream in = new FilterInputStream(resp.getEntity().getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        state.incTotalDone(1);
+                        lane.acquire(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int nRead = super.read(b, off, len);
+                    if (nRead > 0) {
+                        state.incTotalDone(nRead);
+                        lane.acquire(nRead);
+                    }
+                    return nRead;
+                }
+            };
+            DeltaPatcher patcher = new DeltaPatcher(this);
+            long newSize = patcher.readHeader(in);
+            // the patched file is as big as the full one
+            DiskSpace.reserve(tmp, newSize);
+            old = new RandomAccessFile(base, "r");
+            raf = new RandomAccessFile(tmp, "rw");
+            out = new BufferedOutputStream(Channels.newOutputStream(raf.getChannel()), Config.DL_DELTA_BUFFER_SIZE);
+            ResumableMd5 md5 = new ResumableMd5();
+            result = patcher.apply(in, newSize, old, out, md5);
+            if (result == null) {
+                out.close();
+                out = null;
+                if (!Utils.byteArrToStr(md5.digest()).equalsIgnoreCase(state.getMd5().trim())) {
+                    throw new DeltaPatcher.BadPatchException("md5 mismatch after patching");
+                }
+                if (!tmp.renameTo(dest)) throw new DeltaPatcher.BadPatchException("couldn't move patched file into place");
+                built = true;
+            }
+        } catch (DiskSpace.NoSpaceException e) {
+            Log.w(Config.LOG_TAG + "DLTask", "no room to patch (" + e.getMessage() + "), fetching the full file");
+            state.setDeltaFailed(true);
+        } catch (DeltaPatcher.BadPatchException e) {
+            Log.w(Config.LOG_TAG + "DLTask", "delta failed (" + e.getMessage() + "), fetching the full file");
+            state.setDeltaFailed(true);
+        } catch (ZipException e) {
+            Log.w(Config.LOG_TAG + "DLTask", "delta corrupt (" + e.getMessage() + "), fetching the full file");
+            state.setDeltaFailed(true);
+        } catch (IOException e) {
+            // also what cancel(true) interrupting us looks like
+            result = checkInterrupted();
+            if (result == null && !network.refresh().isConnected()) {
+                // not the patch's fault, it gets another go once we're back
+                Log.v(Config.LOG_TAG + "DLTask", "pausing - need data");
+                state.updateStatus(DlState.STATUS_PAUSED_FOR_DATA);
+                result = state.setResult(DownloadResult.PAUSED);
+            } else if (result == null) {
+                // a timeout or a dropped connection, the patch may be fine
+                Log.v(Config.LOG_TAG + "DLTask", "fetching patch failed (" + e.getMessage() + ")");
+                result = retryDelta(null);
+            }
+        } finally {
+            req.abort();
+            httpc.close();
+            if (old != null) {
+                try { old.close(); }
+                catch (IOException e) { }
+            }
+            if (out != null) {
+                try { out.close(); }
+                catch (IOException e) { }
+            }
+            if (raf != null) {
+                try { raf.close(); }
+                catch (IOException e) { }
+            }
+            if (!built) tmp.delete();
+        }
+
+        if (built) {
+            state.setTotalSize(dest.length());
+            state.setTotalDone(dest.length());
+            publishProgress(true);
+            state.updateStatus(DlState.STATUS_COMPLETED);
+            return state.setResult(DownloadResult.FINISHED);
+        }
+
+        // whatever happened, the next attempt starts from nothing
+        state.setTotalSize(0);
+        state.setTotalDone(0);
+        return result;
+    }
+
+    /**
+     * Puts the delta off until later, or gives up on it for the full file
+     * once it has been put off too often.
+     *
+     * @return the result to finish with, or null to download the full file
+     */
+    private DownloadResult retryDelta(Header retryAfter) {
+        if (state.getNumFailed() >= Config.DL_MAX_RETRIES) {
+            Log.w(Config.LOG_TAG + "DLTask", "patch unavailable too long, fetching the full file");
+            state.setDeltaFailed(true);
+            // the full file gets retries of its own
+            state.setNumFailed(0);
+            return null;
+        }
+        return retryLater(retryAfter);
+    }
+
+    /**
+     * Builds dest out of the installed ROM's zip where the block manifest
+     * published next to the new one says they match, fetching only the
+     * rest, see {@link BlockReuse}. Anything that doesn't add up in the end
+     * is thrown away for the full file.
+     *
+     * @return the result to finish with, or null to download the full file
+     */
+    private DownloadResult reuseBlocks(File old, File dest, DownloadJournal journal, MirrorPool mirrors) throws IOException {
+        BlockManifest manifest = fetchManifest();
+        if (manifest == null) return checkInterrupted();
+
+        long[] found = manifest.scan(old, this);
+        if (found == null) return state.getResult();
+        long reused = manifest.getFoundBytes(found);
+        if (reused == 0) {
+            Log.v(Config.LOG_TAG + "DLTask", "nothing in " + old.getName() + " to reuse");
+            return null;
+        }
+        Log.v(Config.LOG_TAG + "DLTask", "reusing " + reused + " of " + manifest.getFileSize() + " bytes from " + old.getName());
+
+        state.setTotalSize(manifest.getFileSize());
+        state.setETag(null);
+        state.setLastModified(null);
+        publishProgress(true);
+
+        DownloadResult result = new BlockReuse(this, state, dest, context, manifest, journal).run(old, found);
+        if (result == DownloadResult.FAILED_CANNOT_RESUME) {
+            discardPartial(dest, journal, null);
+            state.setTotalSize(0);
+            return null;
+        }
+
+        DownloadDigest digest = new DownloadDigest(null, 0);
+        if (result == null) {
+            // ranges the server wouldn't send many to a request it may still send one at a time
+            result = new SegmentedDownload(this, state, dest, context, journal, digest, mirrors).resume(journal.getGaps());
+        } else if (result == DownloadResult.FINISHED) {
+            FileInputStream fis = new FileInputStream(dest);
+            try { digest.catchUp(fis.getChannel(), state.getTotalSize()); }
+            finally { fis.close(); }
+        }
+        if (result != DownloadResult.FINISHED) return result;
+
+        result = finishDownload(dest, journal, digest);
+        if (result == DownloadResult.FAILED_CHECKSUM) {
+            Log.w(Config.LOG_TAG + "DLTask", "reused blocks didn't add up, fetching the full file");
+            state.updateStatus(DlState.STATUS_RUNNING);
+            state.setResult(null);
+            state.setTotalSize(0);
+            state.setTotalDone(0);
+            state.setETag(null);
+            state.setLastModified(null);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * @return the ROM's block manifest, or null if there isn't one (or it can't be had)
+     */
+    private BlockManifest fetchManifest() {
+        AndroidHttpClient httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
+        HttpGet req = new HttpGet(state.getRomInfo().url + Config.DL_BLOCK_MANIFEST_SUFFIX);
+        try {
+            HttpResponse resp = httpc.execute(req);
+            int statusCode = resp.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                Log.v(Config.LOG_TAG + "DLTask", "no block manifest (" + statusCode + ")");
+                return null;
+            }
+            return BlockManifest.read(resp.getEntity().getContent());
+        } catch (IOException e) {
+            Log.v(Config.LOG_TAG + "DLTask", "couldn't read block manifest: " + e.getMessage());
+            return null;
+        } finally {
+            req.abort();
+            httpc.close();
+        }
+    }
+
+    /**
+     * Moves the download to another mirror. Validators only mean something
+     * to the server that sent them, so they're dropped until the new mirror
+     * sends its own, see {@link #adoptValidators}.
+     */
+    private void switchMirror(String url, DownloadJournal journal) {
+        state.switchMirror(url);
+        state.setETag(null);
+        state.setLastModified(null);
+        if (journal != null) journal.setValidator(null);
+    }
+
+    /**
+     * Takes the validators from a range response if we have none, e.g.
+     * after moving to another mirror.
+     */
+    void adoptValidators(HttpResponse resp, DownloadJournal journal) {
+        if (state.getETag() != null || state.getLastModified() != null) return;
+        Header header = resp.getFirstHeader("ETag");
+        state.setETag(header == null ? null : header.getValue());
+        header = resp.getFirstHeader("Last-Modified");
+        state.setLastModified(header == null ? null : header.getValue());
+        if (journal != null) journal.setValidator(state.getValidator());
+    }
+
+    /**
+     * @return true for answers meaning the server is overloaded or having
+     *         trouble, rather than that the request itself is wrong
+     */
+    private static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 500 || statusCode == 502 ||
+                statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Puts the download off for as long as the server asked, or with
+     * exponential backoff if it didn't say. Some jitter is added so clients
+     * turned away together don't all come back together.
+     *
+     * @param retryAfter the server's Retry-After header, may be null
+     */
+    private DownloadResult retryLater(Header retryAfter) {
+        if (state.getNumFailed() >= Config.DL_MAX_RETRIES) {
+            state.updateStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_TOO_MANY_RETRIES);
+        }
+
+        int retry = retryAfter == null ? -1 : parseRetryAfter(retryAfter.getValue());
+        if (retry < 0) retry = Config.DL_RETRY_MIN * (1 << state.getNumFailed());
+        if (retry < Config.DL_RETRY_MIN) retry = Config.DL_RETRY_MIN;
+        if (retry > Config.DL_RETRY_MAX) retry = Config.DL_RETRY_MAX;
+        retry += (int) (Config.DL_RETRY_MIN * Math.random());
+
+        state.setRetryAfter(retry);
+        state.setRetryAt(System.currentTimeMillis() + retry * 1000L);
+        state.incNumFailed();
+        state.updateStatus(DlState.STATUS_PAUSED_RETRY);
+        return state.setResult(DownloadResult.RETRY_LATER);
+    }
+
+    /**
+     * @return seconds to wait, from either form of Retry-After, or -1 if it can't be read
+     */
+    private static int parseRetryAfter(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) { }
+        try {
+            long wait = DateUtils.parseDate(value).getTime() - System.currentTimeMillis();
+            return (int) Math.max(0, Math.min(wait / 1000, Integer.MAX_VALUE));
+        } catch (DateParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Throws away a partial download whose file changed on the server.
+     *
+     * @return null, for clearing the caller's reference to out
+     */
+    private RandomAccessFile discardPartial(File dest, DownloadJournal journal, RandomAccessFile out) throws IOException {
+        if (out != null) out.close();
+        dest.delete();
+        journal.delete();
+        state.setTotalDone(0);
+        state.setDigestState(null);
+        state.setContinuing(false);
+        return null;
+    }
+
+    /**
+     * @return false if Content-Range gives a total size other than the one we had
+     */
+    private boolean sameTotalSize(HttpResponse resp) {
+        long total = getRangeTotal(resp);
+        return total == -1 || state.getTotalSize() == 0 || total == state.getTotalSize();
+    }
+
+    /**
+     * @return the full size from a range response's Content-Range, -1 if it doesn't say
+     */
+    static long getRangeTotal(HttpResponse resp) {
+        Header header = resp.getFirstHeader("Content-Range");
+        if (header == null) return -1;
+        String range = header.getValue();
+        int slash = range.lastIndexOf('/');
+        if (slash == -1 || range.endsWith("*")) return -1;
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads len bytes from in and compares them with the file at offset.
+     */
+    private static boolean matchesFile(InputStream in, File file, long offset, int len) throws IOException {
+        byte[] ours = new byte[len];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(ours);
+        } finally {
+            raf.close();
+        }
+
+        byte[] theirs = new byte[len];
+        int done = 0;
+        while (done < len) {
+            int nRead = in.read(theirs, done, len - done);
+            if (nRead == -1) return false;
+            done += nRead;
+        }
+        return Arrays.equals(ours, theirs);
+    }
+
+    /**
+     * @return true if file is all there, going by the md5 the server gave us
+     */
+    private boolean isVerifiedCopy(File file) {
+        String md5 = state.getMd5();
+        return md5 != null && md5.length() != 0 && Utils.md5(file).equalsIgnoreCase(md5.trim());
+    }
+
+    /**
+     * Checks the finished file against the md5 the server gave us. The digest
+     * was built up while downloading, so this never reads the file again.
+     */
+    private DownloadResult finishDownload(File dest, DownloadJournal journal, DownloadDigest digest) {
+        String md5 = state.getMd5();
+        long length = state.getTotalSize() == 0 ? state.getTotalDone() : state.getTotalSize();
+        if (md5 != null && md5.length() != 0 && !digest.matches(md5, length)) {
+            Log.w(Config.LOG_TAG + "DLTask", "md5 mismatch after download");
+            dest.delete();
+            if (journal != null) journal.delete();
+            state.setDigestState(null);
+            state.updateStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_CHECKSUM);
+        }
+
+        if (journal != null) journal.delete();
+        state.setDigestState(null);
+        state.updateStatus(DlState.STATUS_COMPLETED);
+        return state.setResult(DownloadResult.FINISHED);
+    }
+
+    /**
+     * Checks whether the download should stop, either because the user asked
+     * or because the network no longer allows it. Safe to call from any thread.
+     *
+     * @return the result to finish with, or null to keep going
+     */
+    DownloadResult checkInterrupted() {
+        if (this.isCancelled()) {
+            if (pausing) {
+                Log.v(Config.LOG_TAG + "DLTask", "pausing - user request");
+                state.updateStatus(DlState.STATUS_PAUSED_USER);
+                return state.setResult(DownloadResult.PAUSED);
+            } else {
+                Log.v(Config.LOG_TAG + "DLTask", "cancel - user request");
+                state.updateStatus(DlState.STATUS_CANCELLED_USER);
+                return state.setResult(DownloadResult.CANCELLED);
+            }
+        } else if (callback != null && needsCheck()) {
+            markChecked();
+            int check = callback.onCheckContinue(state);
+            if (check != 0) {
+                if (check == DownloadService.STOP_NO_WIFI) {
+                    Log.v(Config.LOG_TAG + "DLTask", "pausing - need wifi");
+                    state.updateStatus(DlState.STATUS_PAUSED_FOR_WIFI);
+                    return state.setResult(DownloadResult.PAUSED);
+                }
+                if (check == DownloadService.STOP_NO_DATA) {
+                    Log.v(Config.LOG_TAG + "DLTask", "pausing - need data");
+                    state.updateStatus(DlState.STATUS_PAUSED_FOR_DATA);
+                    return state.setResult(DownloadResult.PAUSED);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The answer only changes with the network (which always comes as a new
+     * NetState), the download's size (limits on mobile data) or the settings.
+     */
+    private boolean needsCheck() {
+        return cfg.getDlPolicySeq() != checkedPolicy ||
+                network.getState() != checkedNet ||
+                state.getTotalSize() != checkedSize;
+    }
+
+    private void markChecked() {
+        // settings first, see Config#getDlPolicySeq
+        checkedPolicy = cfg.getDlPolicySeq();
+        checkedNet = network.getState();
+        checkedSize = state.getTotalSize();
+    }
+
+    /**
+     * Lets helpers running on other threads post progress through this task.
+     * Plain byte progress is only ever posted by {@link ProgressSampler}.
+     */
+    void notifyProgress(boolean lengthReceived) {
+        if (lengthReceived) publishProgress(true);
+        else publishProgress();
+    }
+
     public void pause() {
         pausing = true;
         cancel(true);
@@ -449,7 +1121,8 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         FINISHED, CANCELLED, PAUSED, RETRY_LATER, FAILED_UNKNOWN, FAILED_FILE_NOT_FOUND,
         FAILED_MOUNT_NOT_AVAILABLE, FAILED_NOT_ENOUGH_SPACE, FAILED_PROTOCAL_ERROR, FAILED_NETWORK_ERROR,
         FAILED_TOO_MANY_REDIRECTS, FAILED_TOO_MANY_RETRIES, FAILED_CANNOT_RESUME, FAILED_UNHANDLED_REDIRECT,
-        FAILED_UNHANDLED_HTTP_CODE, FAILED_HTTP_ERROR_CODE, FAILED_FTP_LOGIN_ERROR, FAILED_CONNECTION_REFUSED
+        FAILED_UNHANDLED_HTTP_CODE, FAILED_HTTP_ERROR_CODE, FAILED_FTP_LOGIN_ERROR, FAILED_CONNECTION_REFUSED,
+        FAILED_CHECKSUM
     }
 
     public static interface DownloadListener {
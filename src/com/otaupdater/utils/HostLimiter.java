@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.HashMap;
+
+import android.net.Uri;
+
+/**
+ * Counts open download connections per host, across all running downloads,
+ * so together they never exceed {@link Config#getMaxHostConnections}. The
+ * scheduler takes one permit for each download it starts; segmented
+ * downloads take another for every extra connection they open.
+ */
+class HostLimiter {
+    private static final HashMap<String, Integer> CONNECTIONS = new HashMap<String, Integer>();
+    private static int maxPerHost = Config.DL_DEFAULT_HOST_CONNECTIONS;
+
+    private HostLimiter() {
+    }
+
+    static synchronized void setMaxPerHost(int max) {
+        maxPerHost = Math.max(1, max);
+    }
+
+    static String getHost(String url) {
+        String host = url == null ? null : Uri.parse(url).getHost();
+        return host == null ? "" : host.toLowerCase();
+    }
+
+    static synchronized int getCount(String host) {
+        Integer count = CONNECTIONS.get(host);
+        return count == null ? 0 : count;
+    }
+
+    static synchronized boolean hasRoom(String host) {
+        return getCount(host) < maxPerHost;
+    }
+
+    static synchronized boolean tryAcquire(String host) {
+        int count = getCount(host);
+        if (count >= maxPerHost) return false;
+        CONNECTIONS.put(host, count + 1);
+        return true;
+    }
+
+    /**
+     * Takes a permit even if host is already at its limit.
+     */
+    static synchronized void acquire(String host) {
+        CONNECTIONS.put(host, getCount(host) + 1);
+    }
+
+    static synchronized void release(String host) {
+        int count = getCount(host);
+        if (count <= 1) CONNECTIONS.remove(host);
+        else CONNECTIONS.put(host, count - 1);
+    }
+}
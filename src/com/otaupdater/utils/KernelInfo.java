@@ -16,6 +16,7 @@
 
 package com.otaupdater.utils;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
@@ -41,6 +42,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.AsyncTask;
+import android.os.BadParcelableException;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -66,6 +68,8 @@ public class KernelInfo implements Parcelable, Serializable {
     public String version;
     public String changelog;
     public String url;
+    /** other places to get the same file from, may be null */
+    public String[] mirrors;
     public String md5;
     public Date date;
 
@@ -73,10 +77,15 @@ public class KernelInfo implements Parcelable, Serializable {
     private transient Dialog downloadingDialog = null;
 
     public KernelInfo(String kernelName, String version, String changelog, String downurl, String md5, Date date) {
+        this(kernelName, version, changelog, downurl, null, md5, date);
+    }
+
+    public KernelInfo(String kernelName, String version, String changelog, String downurl, String[] mirrors, String md5, Date date) {
         this.kernelName = kernelName;
         this.version = version;
         this.changelog = changelog;
         this.url = downurl;
+        this.mirrors = mirrors;
         this.md5 = md5;
         this.date = date;
     }
@@ -87,6 +96,7 @@ public class KernelInfo implements Parcelable, Serializable {
                 i.getStringExtra("kernel_info_version"),
                 i.getStringExtra("kernel_info_changelog"),
                 i.getStringExtra("kernel_info_url"),
+                i.getStringArrayExtra("kernel_info_mirrors"),
                 i.getStringExtra("kernel_info_md5"),
                 Utils.parseDate(i.getStringExtra("kernel_info_date")));
     }
@@ -96,6 +106,7 @@ public class KernelInfo implements Parcelable, Serializable {
         i.putExtra("kernel_info_version", version);
         i.putExtra("kernel_info_changelog", changelog);
         i.putExtra("kernel_info_url", url);
+        i.putExtra("kernel_info_mirrors", mirrors);
         i.putExtra("kernel_info_md5", md5);
         i.putExtra("kernel_info_date", Utils.formatDate(date));
     }
@@ -107,12 +118,7 @@ public class KernelInfo implements Parcelable, Serializable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(kernelName);
-        dest.writeString(version);
-        dest.writeString(changelog);
-        dest.writeString(url);
-        dest.writeString(md5);
-        dest.writeLong(date.getTime());
+        dest.writeByteArray(StateCodec.encode(this));
     }
 
     public static final Creator<KernelInfo> CREATOR = new Creator<KernelInfo>() {
@@ -123,13 +129,11 @@ public class KernelInfo implements Parcelable, Serializable {
 
         @Override
         public KernelInfo createFromParcel(Parcel source) {
-            return new KernelInfo(
-                    source.readString(),
-                    source.readString(),
-                    source.readString(),
-                    source.readString(),
-                    source.readString(),
-                    new Date(source.readLong()));
+            try {
+                return StateCodec.decodeKernelInfo(source.createByteArray());
+            } catch (IOException e) {
+                throw new BadParcelableException(e);
+            }
         }
     };
 
@@ -298,7 +302,7 @@ public class KernelInfo implements Parcelable, Serializable {
     }
 
     public static void fetchInfo(Context ctx, KernelInfoListener callback) {
-        new FetchInfoTask(ctx, callback).execute();
+        TaskExecutors.executeNetwork(new FetchInfoTask(ctx, callback));
     }
 
     protected static class FetchInfoTask extends AsyncTask<Void, Void, KernelInfo> {
@@ -352,6 +356,7 @@ public class KernelInfo implements Parcelable, Serializable {
                             json.getString("version"),
                             json.getString("changelog"),
                             json.getString("url"),
+                            Utils.parseMirrors(json),
                             json.getString("md5"),
                             Utils.parseDate(json.getString("date")));
                 } else {
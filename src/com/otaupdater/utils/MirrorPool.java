@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+
+import android.content.Context;
+import android.net.http.AndroidHttpClient;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The places a download can come from: the update's url plus the mirrors
+ * it lists. {@link #probe} times a one-byte range request to each (connect
+ * plus time to first byte), and mirrors are ranked on that together with
+ * the throughput {@link MirrorStats} remembers from earlier downloads.
+ *
+ * Nothing but the size says two mirrors serve the same file until the md5
+ * is checked at the end, so pools are only made for downloads with an md5,
+ * and a mirror whose size disagrees is dropped.
+ *
+ * Safe to use from any thread.
+ */
+class MirrorPool {
+    private static final String TAG = Config.LOG_TAG + "Mirrors";
+
+    private static class Mirror {
+        private final String url;
+        private final String host;
+        /** ms from the probe, -1 if it didn't answer in time */
+        private long latency = -1;
+        /** from {@link MirrorStats} when last ranked, so sorting sees fixed values */
+        private long rate = 0;
+        private boolean bad = false;
+
+        Mirror(String url) {
+            this.url = url;
+            this.host = HostLimiter.getHost(url);
+        }
+    }
+
+    /**
+     * What a probe found out about a mirror, for {@link Config#DL_MIRROR_PROBE_TTL}.
+     */
+    private static class Probe {
+        private final long latency;
+        private final boolean ranges;
+        private final long size;
+        private final long time = SystemClock.elapsedRealtime();
+
+        Probe(long latency, boolean ranges, long size) {
+            this.latency = latency;
+            this.ranges = ranges;
+            this.size = size;
+        }
+    }
+
+    /** by url, shared by every download */
+    private static final HashMap<String, Probe> PROBES = new HashMap<String, Probe>();
+
+    private final Context context;
+    private final MirrorStats stats;
+    /** best first */
+    private final ArrayList<Mirror> mirrors = new ArrayList<Mirror>();
+
+    private final Comparator<Mirror> byScore = new Comparator<Mirror>() {
+        @Override
+        public int compare(Mirror lhs, Mirror rhs) {
+            if (lhs.bad != rhs.bad) return lhs.bad ? 1 : -1;
+            long l = score(lhs);
+            long r = score(rhs);
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    private MirrorPool(Context ctx, String[] urls) {
+        context = ctx;
+        stats = MirrorStats.getInstance(ctx);
+        for (String url : urls) {
+            if (mirrors.size() >= Config.DL_MIRROR_MAX) break;
+            if (url == null || !url.startsWith("http:") || find(url) != null) continue;
+            mirrors.add(new Mirror(url));
+        }
+        rank();
+    }
+
+    /**
+     * @return a pool for state, or null if there's only the one url to use
+     */
+    static MirrorPool create(Context ctx, DlState state) {
+        String md5 = state.getMd5();
+        if (md5 == null || md5.length() == 0) return null;
+        MirrorPool pool = new MirrorPool(ctx, state.getMirrorURLs());
+        return pool.mirrors.size() < 2 ? null : pool;
+    }
+
+    /**
+     * Probes the mirrors on {@link TaskExecutors#NETWORK} and ranks them on
+     * the results. Takes at most about {@link Config#DL_MIRROR_PROBE_TIMEOUT}
+     * ms; probes still busy by then are aborted and their mirrors ranked as
+     * if they had timed out. A mirror probed less than
+     * {@link Config#DL_MIRROR_PROBE_TTL} ms ago isn't probed again, so
+     * resuming doesn't hold the download up.
+     *
+     * @param totalSize size mirrors have to agree on, 0 if not known yet
+     */
+    void probe(final long totalSize) {
+        final ArrayList<Mirror> todo = new ArrayList<Mirror>();
+        synchronized (this) {
+            for (Mirror mirror : mirrors) {
+                if (!fromCache(mirror, totalSize)) todo.add(mirror);
+            }
+        }
+
+        if (!todo.isEmpty()) {
+            final CountDownLatch done = new CountDownLatch(todo.size());
+            final HttpGet[] reqs = new HttpGet[todo.size()];
+            final boolean[] late = new boolean[1];
+            for (int q = 0; q < todo.size(); q++) {
+                final int n = q;
+                TaskExecutors.NETWORK.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            HttpGet req = new HttpGet(todo.get(n).url);
+                            synchronized (reqs) {
+                                // queued behind other work for too long, it's been ranked without us
+                                if (late[0]) return;
+                                reqs[n] = req;
+                            }
+                            probe(todo.get(n), req, totalSize);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+
+            try {
+                done.await(Config.DL_MIRROR_PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // cancelled, go with what we have
+            }
+            synchronized (reqs) {
+                late[0] = true;
+                for (HttpGet req : reqs) {
+                    if (req != null) req.abort();
+                }
+            }
+        }
+
+        synchronized (this) {
+            rank();
+        }
+    }
+
+    private void probe(Mirror mirror, HttpGet req, long totalSize) {
+        AndroidHttpClient httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
+        HttpConnectionParams.setConnectionTimeout(httpc.getParams(), (int) Config.DL_MIRROR_PROBE_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(httpc.getParams(), (int) Config.DL_MIRROR_PROBE_TIMEOUT);
+        req.addHeader("Range", "bytes=0-0");
+        try {
+            long start = SystemClock.elapsedRealtime();
+            HttpResponse resp = httpc.execute(req);
+            long latency = SystemClock.elapsedRealtime() - start;
+
+            // without ranges a mirror is no good for resuming or splitting
+            int statusCode = resp.getStatusLine().getStatusCode();
+            long size = DownloadTask.getRangeTotal(resp);
+            boolean ok = statusCode == 206 && (totalSize == 0 || size == -1 || size == totalSize);
+            Log.v(TAG, mirror.host + " answered " + statusCode + " in " + latency + "ms, size " + size);
+            synchronized (this) {
+                mirror.latency = latency;
+                mirror.bad = !ok;
+            }
+            synchronized (PROBES) {
+                PROBES.put(mirror.url, new Probe(latency, statusCode == 206, size));
+            }
+        } catch (IOException e) {
+            Log.v(TAG, mirror.host + " probe failed: " + e.getMessage());
+            // aborted for being too slow only means it ranks as timed out
+            if (!req.isAborted()) {
+                synchronized (this) {
+                    mirror.bad = true;
+                }
+            }
+        } finally {
+            req.abort();
+            httpc.close();
+        }
+    }
+
+    /**
+     * Takes mirror's latency from a recent probe, if there was one.
+     *
+     * @return false if it has to be probed
+     */
+    private boolean fromCache(Mirror mirror, long totalSize) {
+        Probe probe;
+        synchronized (PROBES) {
+            probe = PROBES.get(mirror.url);
+        }
+        if (probe == null || SystemClock.elapsedRealtime() - probe.time > Config.DL_MIRROR_PROBE_TTL) return false;
+        mirror.latency = probe.latency;
+        mirror.bad = !probe.ranges || (totalSize != 0 && probe.size != -1 && probe.size != totalSize);
+        return true;
+    }
+
+    /**
+     * @return the best mirror that hasn't failed, null if they all have
+     */
+    synchronized String best() {
+        Mirror first = mirrors.get(0);
+        return first.bad ? null : first.url;
+    }
+
+    /**
+     * Spreads connections over the mirrors that haven't failed, best first.
+     *
+     * @param n how many connections are already open
+     * @return the mirror for the next one, null if they have all failed
+     */
+    synchronized String pick(int n) {
+        int good = 0;
+        while (good < mirrors.size() && !mirrors.get(good).bad) good++;
+        return good == 0 ? null : mirrors.get(n % good).url;
+    }
+
+    /**
+     * Gives up on url for the rest of this download.
+     *
+     * @return the best mirror left, null if none
+     */
+    synchronized String failover(String url) {
+        Mirror mirror = find(url);
+        if (mirror != null && !mirror.bad) {
+            Log.v(TAG, "giving up on " + mirror.host);
+            mirror.bad = true;
+            stats.recordFailure(mirror.host);
+            rank();
+        }
+        return best();
+    }
+
+    /**
+     * Credits a mirror with bytes fetched from it, for ranking it next time.
+     */
+    void recordTransfer(String url, long bytes, long millis) {
+        stats.recordTransfer(HostLimiter.getHost(url), bytes, millis);
+    }
+
+    /**
+     * @return true if url is one of the pool's mirrors and hasn't failed
+     */
+    synchronized boolean isGood(String url) {
+        Mirror mirror = find(url);
+        return mirror != null && !mirror.bad;
+    }
+
+    private Mirror find(String url) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.url.equals(url)) return mirror;
+        }
+        return null;
+    }
+
+    private void rank() {
+        for (Mirror mirror : mirrors) {
+            mirror.rate = stats.getThroughput(mirror.host);
+        }
+        Collections.sort(mirrors, byScore);
+    }
+
+    /**
+     * @return roughly how many ms fetching {@link Config#DL_MIRROR_RANK_BYTES} from mirror would take
+     */
+    private long score(Mirror mirror) {
+        long latency = mirror.latency == -1 ? Config.DL_MIRROR_PROBE_TIMEOUT : mirror.latency;
+        long rate = mirror.rate == 0 ? Config.DL_MIRROR_ASSUMED_RATE : mirror.rate;
+        return latency + Config.DL_MIRROR_RANK_BYTES * 1000 / rate;
+    }
+}
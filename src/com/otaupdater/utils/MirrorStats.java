@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers how fast each mirror host has been, across downloads and
+ * restarts, so {@link MirrorPool} has more to rank on than one probe. Kept
+ * in its own preferences file as a moving average of bytes/s per host; a
+ * failure halves it.
+ */
+class MirrorStats {
+    private static final String PREFS_NAME = "mirror_stats";
+
+    private final SharedPreferences prefs;
+
+    private MirrorStats(Context ctx) {
+        prefs = ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static MirrorStats instance = null;
+    static synchronized MirrorStats getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new MirrorStats(ctx);
+        }
+        return instance;
+    }
+
+    /**
+     * @return bytes/s we've seen from host, 0 if we don't know
+     */
+    synchronized long getThroughput(String host) {
+        return prefs.getLong(host, 0);
+    }
+
+    synchronized void recordTransfer(String host, long bytes, long millis) {
+        // too little to say anything about the mirror rather than the connection setup
+        if (bytes < Config.DL_MIRROR_MIN_SAMPLE || millis <= 0) return;
+        long rate = bytes * 1000 / millis;
+        long old = getThroughput(host);
+        long avg = old == 0 ? rate : old + (rate - old) / 4;
+        prefs.edit().putLong(host, avg).apply();
+    }
+
+    synchronized void recordFailure(String host) {
+        long old = getThroughput(host);
+        if (old != 0) prefs.edit().putLong(host, old / 2).apply();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.annotation.TargetApi;
+import android.app.DownloadManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Caches what the download code needs to know about the network. The
+ * system is only asked when {@link #refresh} is called, which the service
+ * does on every CONNECTIVITY_ACTION; everyone else just reads the current
+ * {@link NetState}, a single volatile field. A new NetState object is
+ * published on every refresh, so comparing references tells whether
+ * anything may have changed.
+ */
+public class NetworkMonitor {
+    private static final String TAG = Config.LOG_TAG + "Network";
+
+    public static class NetState {
+        private final boolean connected;
+        private final boolean connecting;
+        private final boolean wifi;
+        private final boolean metered;
+        private final long maxBytesOverMobile;
+
+        private NetState(boolean connected, boolean connecting, boolean wifi, boolean metered, long maxBytesOverMobile) {
+            this.connected = connected;
+            this.connecting = connecting;
+            this.wifi = wifi;
+            this.metered = metered;
+            this.maxBytesOverMobile = maxBytesOverMobile;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public boolean isConnectedOrConnecting() {
+            return connected || connecting;
+        }
+
+        public boolean isWifi() {
+            return wifi;
+        }
+
+        public boolean isMetered() {
+            return metered;
+        }
+
+        /**
+         * @return the system's limit for downloads over mobile data, 0 for none
+         */
+        public long getMaxBytesOverMobile() {
+            return maxBytesOverMobile;
+        }
+
+        private boolean sameAs(NetState other) {
+            return other != null && connected == other.connected && connecting == other.connecting &&
+                    wifi == other.wifi && metered == other.metered && maxBytesOverMobile == other.maxBytesOverMobile;
+        }
+
+        @Override
+        public String toString() {
+            return "connected=" + connected + " connecting=" + connecting + " wifi=" + wifi + " metered=" + metered;
+        }
+    }
+
+    private final Context context;
+    private volatile NetState state;
+
+    private NetworkMonitor(Context ctx) {
+        context = ctx.getApplicationContext();
+        refresh();
+    }
+
+    private static NetworkMonitor instance = null;
+    public static synchronized NetworkMonitor getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new NetworkMonitor(ctx);
+        }
+        return instance;
+    }
+
+    public NetState getState() {
+        return state;
+    }
+
+    /**
+     * Asks the system for the current network state and publishes it.
+     */
+    @TargetApi(16)
+    public NetState refresh() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
+
+        boolean connected = ni != null && ni.isConnected();
+        boolean connecting = ni != null && !connected && ni.isConnectedOrConnecting();
+        boolean wifi = ni != null && ni.getType() == ConnectivityManager.TYPE_WIFI;
+        boolean metered = !wifi;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            metered = cm.isActiveNetworkMetered();
+        }
+
+        NetState newState = new NetState(connected, connecting, wifi, metered, getMaxBytesOverMobile());
+        // reconnect loops refresh on every attempt, only changes are worth a line
+        if (!newState.sameAs(state)) Log.v(TAG, newState.toString());
+        state = newState;
+        return newState;
+    }
+
+    @TargetApi(11)
+    private long getMaxBytesOverMobile() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) return 0;
+        Long max = DownloadManager.getMaxBytesOverMobile(context);
+        return max == null ? 0 : max;
+    }
+}
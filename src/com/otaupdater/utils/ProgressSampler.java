@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the byte counters of running downloads into progress callbacks at a
+ * fixed rate. Copy loops only bump {@link DlState#incTotalDone}; one shared
+ * thread looks at every running download each
+ * {@link Config#DL_PROGRESS_INTERVAL} ms and only posts to the main thread if
+ * enough has changed to show up anywhere.
+ */
+class ProgressSampler {
+    private static ScheduledExecutorService executor = null;
+
+    private final DownloadTask task;
+    private final DlState state;
+    private ScheduledFuture<?> future = null;
+    private long lastPublished;
+    private boolean stopped = false;
+
+    private ProgressSampler(DownloadTask task) {
+        this.task = task;
+        this.state = task.getState();
+        this.lastPublished = state.getTotalDone();
+    }
+
+    /**
+     * Starts sampling task until the returned sampler is stopped.
+     */
+    static ProgressSampler start(DownloadTask task) {
+        final ProgressSampler sampler = new ProgressSampler(task);
+        sampler.future = getExecutor().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sampler.sample();
+            }
+        }, Config.DL_PROGRESS_INTERVAL, Config.DL_PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+        return sampler;
+    }
+
+    /**
+     * Stops sampling. A sample already under way is waited for, so nothing
+     * is published after this returns.
+     */
+    synchronized void stop() {
+        stopped = true;
+        future.cancel(false);
+    }
+
+    private synchronized void sample() {
+        if (stopped) return;
+        long done = state.getTotalDone();
+        long delta = done - lastPublished;
+        if (delta == 0) return;
+
+        long threshold = Math.max(Config.DL_PROGRESS_MIN_BYTES, state.getTotalSize() / Config.DL_PROGRESS_STEPS);
+        if (delta < 0 || delta >= threshold) {
+            lastPublished = done;
+            task.notifyProgress(false);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "OTA-DL-progress");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+
+/**
+ * Caps how fast all downloads together read from the network, at
+ * {@link Config#getMaxDlRate}, splitting the cap between the running
+ * downloads by their {@link DlState#getWeight weight}. Every running
+ * download has a token bucket filling at its share; the threads reading for
+ * it each go through a {@link Lane} of their own, which only visits the
+ * shared bucket once per {@link Config#DL_RATE_SLICE_MILLIS} worth of
+ * tokens. Without a cap a lane is one volatile read per read call.
+ *
+ * Shares are worked out again when a download starts or stops or the cap
+ * or a weight changes. What a download leaves of its share unused isn't
+ * passed on to the others.
+ */
+public class RateGovernor {
+    private static final ArrayList<Bucket> BUCKETS = new ArrayList<Bucket>();
+    /** bytes/s, 0 for no limit */
+    private static volatile long limit = 0;
+
+    private RateGovernor() {
+    }
+
+    /**
+     * @param bytesPerSec 0 for no limit
+     */
+    public static synchronized void setLimit(long bytesPerSec) {
+        limit = Math.max(0, bytesPerSec);
+        rebalance();
+    }
+
+    public static long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gives a running download a new share. Downloads that aren't running
+     * pick their weight up from {@link DlState} when they start.
+     */
+    public static synchronized void setWeight(int id, int weight) {
+        for (Bucket bucket : BUCKETS) {
+            if (bucket.id == id) bucket.weight = weight;
+        }
+        rebalance();
+    }
+
+    static synchronized Bucket register(DlState state) {
+        Bucket bucket = new Bucket(state.getId(), state.getWeight());
+        BUCKETS.add(bucket);
+        rebalance();
+        return bucket;
+    }
+
+    static synchronized void unregister(Bucket bucket) {
+        BUCKETS.remove(bucket);
+        rebalance();
+    }
+
+    private static void rebalance() {
+        long total = 0;
+        for (Bucket bucket : BUCKETS) total += bucket.weight;
+        for (Bucket bucket : BUCKETS) {
+            bucket.setRate(limit == 0 ? 0 : Math.max(1, limit * bucket.weight / total));
+        }
+    }
+
+    /**
+     * One download's share of the limit.
+     */
+    static class Bucket {
+        private final int id;
+        /** guarded by RateGovernor.class */
+        private int weight;
+
+        private long rate = 0;
+        private long tokens = 0;
+        private long lastFill = SystemClock.elapsedRealtime();
+        /** how many tokens a lane takes at once */
+        private volatile long slice = Config.DL_RATE_SLICE_MIN;
+
+        private Bucket(int id, int weight) {
+            this.id = id;
+            this.weight = Math.max(1, weight);
+        }
+
+        private synchronized void setRate(long rate) {
+            long now = SystemClock.elapsedRealtime();
+            fill(now);
+            // debt run up under an old limit would stall the new one
+            if (this.rate == 0 || tokens < 0) tokens = 0;
+            this.rate = rate;
+            slice = Math.max(Config.DL_RATE_SLICE_MIN, rate * Config.DL_RATE_SLICE_MILLIS / 1000);
+        }
+
+        private void fill(long now) {
+            if (rate > 0) {
+                long burst = rate * Config.DL_RATE_BURST_MILLIS / 1000;
+                tokens = Math.min(tokens + (now - lastFill) * rate / 1000, Math.max(burst, slice));
+            }
+            lastFill = now;
+        }
+
+        /**
+         * Takes n tokens, going into debt if there aren't enough.
+         *
+         * @return ms until the debt is paid off
+         */
+        private synchronized long take(long n) {
+            fill(SystemClock.elapsedRealtime());
+            tokens -= n;
+            if (tokens >= 0 || rate == 0) return 0;
+            return -tokens * 1000 / rate;
+        }
+
+        /**
+         * @return a lane for one reading thread
+         */
+        Lane newLane() {
+            return new Lane(this);
+        }
+    }
+
+    /**
+     * Tokens held by one reading thread. Not thread safe.
+     */
+    static class Lane {
+        private final Bucket bucket;
+        private long credit = 0;
+
+        private Lane(Bucket bucket) {
+            this.bucket = bucket;
+        }
+
+        /**
+         * Accounts for n bytes just read, waiting until the download is back
+         * within its share. Sleeps {@link Config#DL_RATE_MAX_WAIT} at most at
+         * a time, to notice the limit being lifted, and returns early if the
+         * thread is interrupted; the caller's own checks sort out why.
+         */
+        void acquire(int n) {
+            if (limit == 0) {
+                credit = 0;
+                return;
+            }
+            credit -= n;
+            if (credit >= 0) return;
+
+            long want = Math.max(-credit, bucket.slice);
+            long wait = bucket.take(want);
+            credit += want;
+            // a read bigger than a second's share has to wait it all out, or the debt only grows
+            while (wait > 0) {
+                try {
+                    Thread.sleep(Math.min(wait, Config.DL_RATE_MAX_WAIT));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (limit == 0) return;
+                wait = bucket.take(0);
+            }
+        }
+    }
+}
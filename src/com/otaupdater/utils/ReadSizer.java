@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.os.SystemClock;
+
+/**
+ * Picks how much one network stream reads at a time from the rate it's
+ * actually delivering. Too little and a fast link spends its time in read
+ * calls; too much and memory sits idle on a slow one. While reads keep
+ * coming back full there's more waiting than we ask for, so the size
+ * doubles, up to what {@link Config#DL_TUNE_BUFFER_MILLIS} of the stream
+ * needs; once they come back mostly short it halves again.
+ *
+ * Not thread safe; one per stream.
+ */
+class ReadSizer {
+    private final int max;
+    private int size;
+
+    private long since = SystemClock.elapsedRealtime();
+    private long sampleReads = 0;
+    private long sampleFull = 0;
+    private long sampleBytes = 0;
+
+    private long reads = 0;
+    private long bytes = 0;
+    /** bytes/s over the last sample, 0 before the first */
+    private long rate = 0;
+
+    /**
+     * @param max the most a read may ask for, which bounds the buffer memory
+     */
+    ReadSizer(int initial, int max) {
+        this.max = Math.max(max, Config.DL_TUNE_BUFFER_MIN);
+        this.size = clamp(initial);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * @param asked how much the read asked for
+     * @param got   how much it returned
+     */
+    void onRead(int asked, int got) {
+        if (got <= 0) return;
+        reads++;
+        bytes += got;
+        sampleReads++;
+        sampleBytes += got;
+        if (got == asked) sampleFull++;
+
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - since;
+        if (elapsed < Config.DL_TUNE_INTERVAL) return;
+
+        rate = sampleBytes * 1000 / elapsed;
+        long wanted = rate * Config.DL_TUNE_BUFFER_MILLIS / 1000;
+        boolean filling = sampleFull * 2 >= sampleReads;
+        if (filling && wanted > size) {
+            size = clamp(size * 2);
+        } else if (!filling && wanted < size / 2) {
+            size = clamp(size / 2);
+        }
+
+        since = now;
+        sampleReads = 0;
+        sampleFull = 0;
+        sampleBytes = 0;
+    }
+
+    long getReads() {
+        return reads;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    private int clamp(int n) {
+        return Math.max(Config.DL_TUNE_BUFFER_MIN, Math.min(max, n));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+/**
+ * Plain MD5 (RFC 1321) whose running state can be exported and restored.
+ * {@link java.security.MessageDigest} offers no way to persist a digest that
+ * is half done, which is exactly what resuming a download needs.
+ */
+public class ResumableMd5 {
+    private static final int STATE_VERSION = 1;
+    private static final int STATE_SIZE = 4 + 16 + 8 + 64;
+
+    private static final int[] S = {
+        7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+        5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+        4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+        6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+
+    private static final int[] K = new int[64];
+    static {
+        for (int q = 0; q < 64; q++) {
+            K[q] = (int) (long) ((1L << 32) * Math.abs(Math.sin(q + 1)));
+        }
+    }
+
+    private int a = 0x67452301;
+    private int b = 0xefcdab89;
+    private int c = 0x98badcfe;
+    private int d = 0x10325476;
+
+    private long length = 0;
+    private final byte[] block = new byte[64];
+    private final int[] x = new int[16];
+
+    public ResumableMd5() {
+    }
+
+    /**
+     * @return number of bytes hashed so far
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void update(byte[] buf, int off, int len) {
+        int fill = (int) (length & 63);
+        length += len;
+
+        if (fill != 0) {
+            int n = Math.min(64 - fill, len);
+            System.arraycopy(buf, off, block, fill, n);
+            off += n;
+            len -= n;
+            if (fill + n < 64) return;
+            transform(block, 0);
+        }
+
+        while (len >= 64) {
+            transform(buf, off);
+            off += 64;
+            len -= 64;
+        }
+
+        if (len > 0) System.arraycopy(buf, off, block, 0, len);
+    }
+
+    /**
+     * Finishes a copy of the running digest, so more data can still be added.
+     */
+    public byte[] digest() {
+        ResumableMd5 copy = fromState(getState());
+
+        long bits = copy.length << 3;
+        int fill = (int) (copy.length & 63);
+        int padLen = fill < 56 ? 56 - fill : 120 - fill;
+        byte[] pad = new byte[padLen + 8];
+        pad[0] = (byte) 0x80;
+        for (int q = 0; q < 8; q++) {
+            pad[padLen + q] = (byte) (bits >>> (8 * q));
+        }
+        copy.update(pad, 0, pad.length);
+
+        byte[] out = new byte[16];
+        putInt(out, 0, copy.a);
+        putInt(out, 4, copy.b);
+        putInt(out, 8, copy.c);
+        putInt(out, 12, copy.d);
+        return out;
+    }
+
+    public byte[] getState() {
+        byte[] out = new byte[STATE_SIZE];
+        putInt(out, 0, STATE_VERSION);
+        putInt(out, 4, a);
+        putInt(out, 8, b);
+        putInt(out, 12, c);
+        putInt(out, 16, d);
+        for (int q = 0; q < 8; q++) {
+            out[20 + q] = (byte) (length >>> (8 * q));
+        }
+        System.arraycopy(block, 0, out, 28, 64);
+        return out;
+    }
+
+    /**
+     * @return the restored digest, or null if the state is not one of ours
+     */
+    public static ResumableMd5 fromState(byte[] state) {
+        if (state == null || state.length != STATE_SIZE || getInt(state, 0) != STATE_VERSION) return null;
+
+        ResumableMd5 md5 = new ResumableMd5();
+        md5.a = getInt(state, 4);
+        md5.b = getInt(state, 8);
+        md5.c = getInt(state, 12);
+        md5.d = getInt(state, 16);
+        long length = 0;
+        for (int q = 0; q < 8; q++) {
+            length |= (state[20 + q] & 0xFFL) << (8 * q);
+        }
+        md5.length = length;
+        System.arraycopy(state, 28, md5.block, 0, 64);
+        return md5;
+    }
+
+    private void transform(byte[] buf, int off) {
+        for (int q = 0; q < 16; q++) {
+            x[q] = getInt(buf, off + 4 * q);
+        }
+
+        int aa = a, bb = b, cc = c, dd = d;
+        for (int q = 0; q < 64; q++) {
+            int f, g;
+            if (q < 16) {
+                f = (bb & cc) | (~bb & dd);
+                g = q;
+            } else if (q < 32) {
+                f = (dd & bb) | (~dd & cc);
+                g = (5 * q + 1) & 15;
+            } else if (q < 48) {
+                f = bb ^ cc ^ dd;
+                g = (3 * q + 5) & 15;
+            } else {
+                f = cc ^ (bb | ~dd);
+                g = (7 * q) & 15;
+            }
+            int tmp = dd;
+            dd = cc;
+            cc = bb;
+            bb = bb + Integer.rotateLeft(aa + f + K[q] + x[g], S[q]);
+            aa = tmp;
+        }
+
+        a += aa;
+        b += bb;
+        c += cc;
+        d += dd;
+    }
+
+    private static int getInt(byte[] buf, int off) {
+        return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8) |
+                ((buf[off + 2] & 0xFF) << 16) | ((buf[off + 3] & 0xFF) << 24);
+    }
+
+    private static void putInt(byte[] buf, int off, int val) {
+        buf[off] = (byte) val;
+        buf[off + 1] = (byte) (val >>> 8);
+        buf[off + 2] = (byte) (val >>> 16);
+        buf[off + 3] = (byte) (val >>> 24);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.otaupdater.DownloadReceiver;
+import com.otaupdater.DownloadService;
+
+/**
+ * Wakes the service when downloads waiting in
+ * {@link DlState#STATUS_PAUSED_RETRY} are due. The waiting downloads are
+ * kept in a heap ordered by {@link DlState#getRetryAt}, and a single alarm
+ * is set for whichever comes first. Times are wall clock since they're
+ * saved with the download and have to survive a reboot.
+ *
+ * Main thread only, like {@link DownloadScheduler}.
+ */
+public class RetryScheduler {
+    private static final String TAG = Config.LOG_TAG + "Retry";
+
+    private static final Comparator<DlState> BY_RETRY_AT = new Comparator<DlState>() {
+        @Override
+        public int compare(DlState lhs, DlState rhs) {
+            long l = lhs.getRetryAt();
+            long r = rhs.getRetryAt();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    private final Context context;
+    private final PriorityQueue<DlState> waiting = new PriorityQueue<DlState>(8, BY_RETRY_AT);
+
+    /** when the alarm is set for, 0 if it isn't */
+    private long nextWake = 0;
+
+    public RetryScheduler(Context ctx) {
+        context = ctx.getApplicationContext();
+    }
+
+    /**
+     * Waits for state's retry time, replacing any earlier wait for it.
+     */
+    public void schedule(DlState state) {
+        waiting.remove(state);
+        waiting.add(state);
+        updateAlarm();
+    }
+
+    /**
+     * Stops waiting for state, e.g. because it was started or cancelled.
+     */
+    public void remove(DlState state) {
+        if (waiting.remove(state)) updateAlarm();
+    }
+
+    public void clear() {
+        waiting.clear();
+        updateAlarm();
+    }
+
+    /**
+     * Stops waiting for every download that is due. They stay
+     * {@link DlState#STATUS_PAUSED_RETRY} and start like any queued download
+     * once there's room.
+     *
+     * @return the downloads that were due
+     */
+    public List<DlState> takeDue() {
+        long now = System.currentTimeMillis();
+        ArrayList<DlState> due = new ArrayList<DlState>();
+        while (!waiting.isEmpty() && waiting.peek().getRetryAt() <= now) {
+            due.add(waiting.poll());
+        }
+        if (!due.isEmpty()) updateAlarm();
+        return due;
+    }
+
+    /**
+     * @return when the next retry alarm goes off, 0 if none is set
+     */
+    public long getNextWake() {
+        return nextWake;
+    }
+
+    public int size() {
+        return waiting.size();
+    }
+
+    private void updateAlarm() {
+        DlState first = waiting.peek();
+        long wake = first == null ? 0 : first.getRetryAt();
+        if (wake == nextWake) return;
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent i = new Intent(context, DownloadReceiver.class);
+        i.setAction(DownloadService.SERVICE_ACTION);
+        i.putExtra(DownloadService.EXTRA_CMD, DownloadService.CMD_RETRY_DUE);
+        PendingIntent pi = PendingIntent.getBroadcast(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        nextWake = wake;
+        if (wake == 0) {
+            am.cancel(pi);
+            Log.v(TAG, "no retries waiting");
+        } else {
+            am.set(AlarmManager.RTC_WAKEUP, wake, pi);
+            Log.v(TAG, waiting.size() + " retries waiting, next in " + (wake - System.currentTimeMillis()) + "ms");
+        }
+    }
+}
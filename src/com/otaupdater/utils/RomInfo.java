@@ -16,6 +16,8 @@
 
 package com.otaupdater.utils;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
@@ -41,6 +43,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.AsyncTask;
+import android.os.BadParcelableException;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -66,6 +69,11 @@ public class RomInfo implements Parcelable, Serializable {
     public String version;
     public String changelog;
     public String url;
+    /** other places to get the same file from, may be null */
+    public String[] mirrors;
+    /** optional patch from deltaFrom to this version, see {@link DeltaPatcher} */
+    public String deltaUrl;
+    public String deltaFrom;
     public String md5;
     public Date date;
 
@@ -73,22 +81,31 @@ public class RomInfo implements Parcelable, Serializable {
     private transient Dialog downloadingDialog = null;
 
     public RomInfo(String romName, String version, String changelog, String downurl, String md5, Date date) {
+        this(romName, version, changelog, downurl, null, md5, date);
+    }
+
+    public RomInfo(String romName, String version, String changelog, String downurl, String[] mirrors, String md5, Date date) {
         this.romName = romName;
         this.version = version;
         this.changelog = changelog;
         this.url = downurl;
+        this.mirrors = mirrors;
         this.md5 = md5;
         this.date = date;
     }
 
     public static RomInfo fromIntent(Intent i) {
-        return new RomInfo(
+        RomInfo info = new RomInfo(
                 i.getStringExtra("rom_info_name"),
                 i.getStringExtra("rom_info_version"),
                 i.getStringExtra("rom_info_changelog"),
                 i.getStringExtra("rom_info_url"),
+                i.getStringArrayExtra("rom_info_mirrors"),
                 i.getStringExtra("rom_info_md5"),
                 Utils.parseDate(i.getStringExtra("rom_info_date")));
+        info.deltaUrl = i.getStringExtra("rom_info_delta_url");
+        info.deltaFrom = i.getStringExtra("rom_info_delta_from");
+        return info;
     }
 
     public void addToIntent(Intent i) {
@@ -96,8 +113,11 @@ public class RomInfo implements Parcelable, Serializable {
         i.putExtra("rom_info_version", version);
         i.putExtra("rom_info_changelog", changelog);
         i.putExtra("rom_info_url", url);
+        i.putExtra("rom_info_mirrors", mirrors);
         i.putExtra("rom_info_md5", md5);
         i.putExtra("rom_info_date", Utils.formatDate(date));
+        i.putExtra("rom_info_delta_url", deltaUrl);
+        i.putExtra("rom_info_delta_from", deltaFrom);
     }
 
     @Override
@@ -107,12 +127,7 @@ public class RomInfo implements Parcelable, Serializable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(romName);
-        dest.writeString(version);
-        dest.writeString(changelog);
-        dest.writeString(url);
-        dest.writeString(md5);
-        dest.writeLong(date.getTime());
+        dest.writeByteArray(StateCodec.encode(this));
     }
 
     public static final Creator<RomInfo> CREATOR = new Creator<RomInfo>() {
@@ -123,13 +138,11 @@ public class RomInfo implements Parcelable, Serializable {
 
         @Override
         public RomInfo createFromParcel(Parcel source) {
-            return new RomInfo(
-                    source.readString(),
-                    source.readString(),
-                    source.readString(),
-                    source.readString(),
-                    source.readString(),
-                    new Date(source.readLong()));
+            try {
+                return StateCodec.decodeRomInfo(source.createByteArray());
+            } catch (IOException e) {
+                throw new BadParcelableException(e);
+            }
         }
     };
 
@@ -211,6 +224,16 @@ public class RomInfo implements Parcelable, Serializable {
         return Utils.sanitizeName(romName + "__" + version + ".zip");
     }
 
+    /**
+     * @return the zip we downloaded for the ROM version that's installed, or null if it's gone
+     */
+    public File getInstalledRomFile() {
+        String installed = PropUtils.getRomOtaVersion();
+        if (installed == null) return null;
+        File file = new File(Config.ROM_DL_PATH_FILE, Utils.sanitizeName(romName + "__" + installed + ".zip"));
+        return file.isFile() && file.length() != 0 ? file : null;
+    }
+
     public void showUpdateDialog(final Context ctx, final DownloadDialogCallback callback) {
         AlertDialog.Builder builder = new AlertDialog.Builder(ctx);
         builder.setTitle(R.string.alert_update_title);
@@ -298,7 +321,7 @@ public class RomInfo implements Parcelable, Serializable {
     }
 
     public static void fetchInfo(Context ctx, RomInfoListener callback) {
-        new FetchInfoTask(ctx, callback).execute();
+        TaskExecutors.executeNetwork(new FetchInfoTask(ctx, callback));
     }
 
     protected static class FetchInfoTask extends AsyncTask<Void, Void, RomInfo> {
@@ -347,13 +370,16 @@ public class RomInfo implements Parcelable, Serializable {
                         return null;
                     }
 
-                    return new RomInfo(
+                    RomInfo info = new RomInfo(
                             json.getString("name"),
                             json.getString("version"),
                             json.getString("changelog"),
                             json.getString("url"),
+                            Utils.parseMirrors(json),
                             json.getString("md5"),
                             Utils.parseDate(json.getString("date")));
+                    Utils.parseDelta(json, info);
+                    return info;
                 } else {
                     if (e != null) e.consumeContent();
                     error = "Server responded with error " + status;
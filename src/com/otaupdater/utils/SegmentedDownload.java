@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.content.Context;
+import android.net.http.AndroidHttpClient;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.otaupdater.utils.DownloadTask.DownloadResult;
+
+/**
+ * Fetches a single HTTP resource over several parallel range requests, all
+ * writing into one preallocated file. Started by {@link DownloadTask} once the
+ * first response shows that the server honors byte ranges; that first
+ * response becomes segment 0 so nothing fetched so far is wasted.
+ *
+ * Connections are added one at a time for as long as each new one still
+ * raises the measured throughput, up to {@link Config#DL_MAX_SEGMENTS}. A
+ * worker that finishes its range steals the back half of the largest
+ * remaining one, so all connections stay busy until the end.
+ *
+ * Finished ranges are recorded in a {@link DownloadJournal}, which is
+ * checkpointed as {@link Config#DL_SYNC_POLICY} says and whenever the
+ * download stops, so {@link #resume} only has to fetch the gaps. The md5 is
+ * fed inline by whichever worker writes at the hashed frontier, and the
+ * coordinator reads back the rest as the frontier passes over it.
+ *
+ * With a {@link MirrorPool}, new connections are spread over the mirrors,
+ * and a connection that keeps failing on one moves to the next. Validators
+ * only mean something to the server that sent them, so connections to other
+ * mirrors check the size instead and leave the rest to the md5.
+ *
+ * Workers size their reads with a {@link ReadSizer} each, and the smallest
+ * range worth splitting off follows the measured rate per connection. Both
+ * start from, and end up in, the {@link TransferTuner} for the network.
+ */
+class SegmentedDownload {
+    private static final String TAG = Config.LOG_TAG + "DLSegment";
+
+    private final DownloadTask task;
+    private final DlState state;
+    private final File dest;
+    private final Context context;
+    private final MirrorPool mirrors;
+
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private final ArrayList<Worker> workers = new ArrayList<Worker>();
+
+    private final DownloadJournal journal;
+    private final DownloadDigest digest;
+    private FileChannel channel = null;
+
+    private volatile boolean stopping = false;
+    private volatile DownloadResult failure = null;
+
+    private final TransferTuner tuner;
+    private final String network;
+    /** read size new workers start with, the last one a worker settled on */
+    private volatile int bufferSize;
+    /** ranges with less than twice this left aren't split */
+    private volatile long splitSize;
+    /** bytes/s over the last sample, 0 before the first */
+    private long rate = 0;
+
+    /**
+     * @param mirrors may be null to fetch everything from state's url
+     */
+    SegmentedDownload(DownloadTask task, DlState state, File dest, Context ctx,
+            DownloadJournal journal, DownloadDigest digest, MirrorPool mirrors) {
+        this.task = task;
+        this.state = state;
+        this.dest = dest;
+        this.context = ctx;
+        this.mirrors = mirrors;
+        this.journal = journal;
+        this.digest = digest;
+
+        tuner = TransferTuner.getInstance(ctx);
+        network = TransferTuner.getNetworkType(ctx);
+        bufferSize = tuner.getBufferSize(network);
+        splitSize = tuner.getSegmentSize(network);
+    }
+
+    /**
+     * Runs the download to completion on the calling thread, which only
+     * coordinates; the data is moved by workers on
+     * {@link TaskExecutors#TRANSFER}. dest has to be
+     * reserved at its full size already, see {@link DiskSpace}.
+     *
+     * @param firstReq request already sent for the start of the file
+     * @param firstIn  body of firstReq, positioned at byte 0
+     */
+    DownloadResult run(HttpGet firstReq, InputStream firstIn) throws IOException {
+        long total = state.getTotalSize();
+
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        try {
+            channel = raf.getChannel();
+
+            Segment first = new Segment(0, total);
+            first.owned = true;
+            segments.add(first);
+            startWorker(new Worker(first, firstReq, firstIn, state.getCurrentMirror()));
+            for (int q = 1; q < Config.DL_SEGMENTS_INITIAL; q++) {
+                if (!addWorker()) break;
+            }
+
+            return coordinate(raf);
+        } finally {
+            shutdown();
+            recordTuning();
+            channel = null;
+            try { raf.close(); }
+            catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Picks up an interrupted segmented download, fetching only the ranges
+     * the journal doesn't have yet. dest has to be reserved already.
+     */
+    DownloadResult resume(ArrayList<long[]> gaps) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        try {
+            channel = raf.getChannel();
+
+            for (long[] gap : gaps) {
+                segments.add(new Segment(gap[0], gap[1]));
+            }
+            for (int q = 0; q < Config.DL_SEGMENTS_INITIAL; q++) {
+                if (!addWorker()) break;
+            }
+
+            return coordinate(raf);
+        } finally {
+            shutdown();
+            recordTuning();
+            channel = null;
+            try { raf.close(); }
+            catch (IOException e) { }
+        }
+    }
+
+    private DownloadResult coordinate(RandomAccessFile raf) throws IOException {
+        long lastDone = state.getTotalDone();
+        long lastSample = System.currentTimeMillis();
+        long rateBeforeAdd = -1;
+        boolean saturated = false;
+
+        while (true) {
+            try {
+                Thread.sleep(Config.DL_SEGMENT_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                // cancel(true) interrupts us, checkInterrupted() sorts out why
+            }
+
+            DownloadResult stop = task.checkInterrupted();
+            if (stop != null) {
+                shutdown();
+                checkpoint(raf);
+                return stop;
+            }
+            if (failure != null) {
+                shutdown();
+                checkpoint(raf);
+                state.updateStatus(failure == DownloadResult.PAUSED ? DlState.STATUS_PAUSED_FOR_DATA : DlState.STATUS_FAILED);
+                return state.setResult(failure);
+            }
+            if (activeWorkers() == 0) break;
+
+            // hash what other segments left ahead of the frontier, a bit per round
+            digest.catchUp(channel, Math.min(journal.getContiguousEnd(),
+                    digest.getLength() + Config.DL_DIGEST_CATCHUP_STEP));
+
+            if (journal.isCheckpointDue()) {
+                checkpoint(raf);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSample < Config.DL_SEGMENT_SAMPLE_INTERVAL) continue;
+
+            long done = state.getTotalDone();
+            long rate = (done - lastDone) * 1000 / (now - lastSample);
+            lastDone = done;
+            lastSample = now;
+            tuneSplit(rate);
+            if (saturated) continue;
+
+            if (rateBeforeAdd != -1 && rate < rateBeforeAdd + rateBeforeAdd / 10) {
+                // last connection didn't buy us at least 10%, link is full
+                Log.v(TAG, "throughput saturated at " + rate + " B/s with " + activeWorkers() + " segments");
+                saturated = true;
+                continue;
+            }
+            if (activeWorkers() >= Config.DL_MAX_SEGMENTS || !addWorker()) {
+                saturated = true;
+                continue;
+            }
+            rateBeforeAdd = rate;
+        }
+
+        joinWorkers();
+        if (failure == null && bytesLeft() != 0) {
+            Log.w(TAG, "all workers quit with " + bytesLeft() + " bytes left");
+            failure = DownloadResult.FAILED_NETWORK_ERROR;
+        }
+        if (failure != null) {
+            checkpoint(raf);
+            state.updateStatus(DlState.STATUS_FAILED);
+            return state.setResult(failure);
+        }
+
+        digest.catchUp(channel, state.getTotalSize());
+        state.updateStatus(DlState.STATUS_COMPLETED);
+        return state.setResult(DownloadResult.FINISHED);
+    }
+
+    /**
+     * Sizes the smallest range worth splitting off so that it keeps a
+     * connection busy for about {@link Config#DL_TUNE_SEGMENT_MILLIS}; on a
+     * slow link a fixed size would be minutes of work, on a fast one a split
+     * would hardly outlast its request.
+     */
+    private void tuneSplit(long rate) {
+        int n = activeWorkers();
+        if (n == 0 || rate <= 0) return;
+        long size = rate / n * Config.DL_TUNE_SEGMENT_MILLIS / 1000;
+        splitSize = Math.max(Config.DL_TUNE_SEGMENT_MIN, Math.min(Config.DL_TUNE_SEGMENT_MAX, size));
+        this.rate = rate;
+    }
+
+    private void recordTuning() {
+        state.getTransferStats().setTuning(network, bufferSize, splitSize);
+        tuner.record(network, bufferSize, splitSize, rate);
+        Log.v(TAG, "tuned for " + network + ": reads of " + bufferSize + ", splits of " + splitSize + " at " + rate + " B/s");
+    }
+
+    private void checkpoint(RandomAccessFile raf) throws IOException {
+        // grab the digest first so it never covers more than the journal will
+        byte[] digestState = digest.getState();
+        journal.checkpoint(raf.getFD());
+        state.setDigestState(digestState);
+    }
+
+    private long bytesLeft() {
+        long left = 0;
+        synchronized (segments) {
+            for (Segment seg : segments) left += seg.remaining();
+        }
+        return left;
+    }
+
+    private boolean addWorker() {
+        // the first connection runs on the permit the scheduler took for us
+        int nWorkers;
+        synchronized (workers) {
+            nWorkers = workers.size();
+        }
+        boolean needPermit = nWorkers != 0;
+
+        String mirror = state.getCurrentMirror();
+        if (needPermit && mirrors != null) {
+            String picked = mirrors.pick(nWorkers);
+            if (picked != null) mirror = picked;
+        }
+        String host = HostLimiter.getHost(urlFor(mirror));
+        if (needPermit && !HostLimiter.tryAcquire(host)) return false;
+
+        Segment seg = nextSegment();
+        if (seg == null) {
+            if (needPermit) HostLimiter.release(host);
+            return false;
+        }
+        Worker worker = new Worker(seg, null, null, mirror);
+        worker.hostPermit = needPermit;
+        startWorker(worker);
+        return true;
+    }
+
+    private void startWorker(Worker worker) {
+        synchronized (workers) {
+            workers.add(worker);
+        }
+        TaskExecutors.TRANSFER.execute(worker);
+    }
+
+    private int activeWorkers() {
+        int n = 0;
+        synchronized (workers) {
+            for (Worker worker : workers) {
+                if (!worker.finished) n++;
+            }
+        }
+        return n;
+    }
+
+    private void shutdown() {
+        stopping = true;
+        synchronized (workers) {
+            for (Worker worker : workers) worker.abort();
+        }
+        joinWorkers();
+    }
+
+    private void joinWorkers() {
+        ArrayList<Worker> copy;
+        synchronized (workers) {
+            copy = new ArrayList<Worker>(workers);
+        }
+        for (Worker worker : copy) worker.join();
+    }
+
+    /**
+     * Hands out a range nobody is working on yet, or failing that splits the
+     * back half off the segment with the most bytes left.
+     *
+     * @return the segment to work on, or null if nothing is worth splitting
+     */
+    private Segment nextSegment() {
+        synchronized (segments) {
+            for (Segment seg : segments) {
+                if (!seg.owned && seg.remaining() > 0) {
+                    seg.owned = true;
+                    return seg;
+                }
+            }
+
+            Segment largest = null;
+            for (Segment seg : segments) {
+                if (largest == null || seg.remaining() > largest.remaining()) largest = seg;
+            }
+            if (largest == null) return null;
+
+            Segment split;
+            synchronized (largest) {
+                long remaining = largest.end - largest.pos;
+                if (remaining < 2 * splitSize) return null;
+                long mid = largest.pos + remaining / 2;
+                split = new Segment(mid, largest.end);
+                largest.end = mid;
+            }
+            split.owned = true;
+            segments.add(split);
+            return split;
+        }
+    }
+
+    /**
+     * @return the url to request for mirror, which is state's (maybe redirected) url for the one it's on
+     */
+    private String urlFor(String mirror) {
+        return mirror.equals(state.getCurrentMirror()) ? state.getSourceURL() : mirror;
+    }
+
+    private void fail(DownloadResult result) {
+        if (failure == null) failure = result;
+        stopping = true;
+    }
+
+    private static class Segment {
+        private long pos;
+        private long end;
+        private boolean owned = false;
+
+        Segment(long start, long end) {
+            this.pos = start;
+            this.end = end;
+        }
+
+        synchronized long remaining() {
+            return end - pos;
+        }
+    }
+
+    private class Worker implements Runnable, BlockWriter.Listener {
+        private Segment seg;
+        private volatile HttpGet req;
+        private InputStream in;
+        private AndroidHttpClient httpc = null;
+
+        private volatile boolean finished = false;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean hostPermit = false;
+
+        private String mirror;
+        private String url;
+        private String host;
+        /** set when the mirror answered in a way that rules it out */
+        private boolean mirrorRefused = false;
+        /** bytes from the current mirror, and since when, for {@link MirrorStats} */
+        private long mirrorBytes;
+        private long mirrorSince;
+
+        private BlockWriter writer;
+        private final ReadSizer sizer = new ReadSizer(bufferSize, Config.DL_TUNE_MEMORY / Config.DL_MAX_SEGMENTS);
+        private final RateGovernor.Lane lane = task.newRateLane();
+        private byte[] buf;
+        /** how far into the segment has actually reached the file */
+        private long writtenTo;
+
+        Worker(Segment seg, HttpGet req, InputStream in, String mirror) {
+            this.seg = seg;
+            this.req = req;
+            this.in = in;
+            setMirror(mirror);
+        }
+
+        private void setMirror(String mirror) {
+            this.mirror = mirror;
+            url = urlFor(mirror);
+            host = HostLimiter.getHost(url);
+            mirrorBytes = 0;
+            mirrorSince = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Moves to the best mirror left after the current one failed.
+         *
+         * @return false if there's nowhere else to go
+         */
+        private boolean switchMirror() {
+            if (mirrors == null) return false;
+            recordMirrorStats();
+            String next = mirrors.failover(mirror);
+            if (next == null || next.equals(mirror)) return false;
+
+            if (hostPermit) HostLimiter.release(host);
+            setMirror(next);
+            // going over the host limit beats giving up on the segment
+            hostPermit = HostLimiter.tryAcquire(host);
+            Log.v(TAG, "segment moving to " + host);
+            return true;
+        }
+
+        private void recordMirrorStats() {
+            if (mirrors != null) mirrors.recordTransfer(mirror, mirrorBytes, SystemClock.elapsedRealtime() - mirrorSince);
+        }
+
+        @Override
+        public void run() {
+            try {
+                writer = new BlockWriter(channel, this);
+                buf = new byte[sizer.getSize()];
+                int failures = 0;
+                long brokenAt = 0;
+                while (!stopping) {
+                    try {
+                        if (in == null) {
+                            open();
+                            if (brokenAt != 0) {
+                                state.getTransferStats().addReconnects(1, System.currentTimeMillis() - brokenAt);
+                                brokenAt = 0;
+                            }
+                        }
+                        if (!copy()) break;
+                        failures = 0;
+
+                        // this range is done, help out with the biggest one left
+                        closeRequest();
+                        seg = nextSegment();
+                        if (seg == null) break;
+                    } catch (IOException e) {
+                        closeRequest();
+                        if (stopping) break;
+                        if (!NetworkMonitor.getInstance(context).refresh().isConnected()) {
+                            Log.v(TAG, "segment lost connection, pausing");
+                            fail(DownloadResult.PAUSED);
+                            break;
+                        }
+                        if (++failures > Config.DL_SEGMENT_MAX_RETRIES) {
+                            Log.w(TAG, "segment failed too many times: " + e.getMessage());
+                            fail(DownloadResult.FAILED_NETWORK_ERROR);
+                            break;
+                        }
+                        Log.v(TAG, "segment IOException, reconnecting: " + e.getMessage());
+                        if (brokenAt == 0) brokenAt = System.currentTimeMillis();
+                        if ((mirrorRefused || failures >= Config.DL_MIRROR_SWITCH_FAILURES) && switchMirror()) {
+                            failures = 0;
+                        } else {
+                            backoff(failures - 1);
+                        }
+                        mirrorRefused = false;
+                    }
+                }
+            } finally {
+                closeRequest();
+                recordMirrorStats();
+                state.getTransferStats().addReads(sizer.getReads(), sizer.getBytes());
+                if (httpc != null) {
+                    httpc.close();
+                    httpc = null;
+                }
+                if (hostPermit) HostLimiter.release(host);
+                finished = true;
+                done.countDown();
+            }
+        }
+
+        /**
+         * Waits before reconnecting, in short naps so stopping isn't held up.
+         */
+        private void backoff(int attempt) {
+            long until = System.currentTimeMillis() + Backoff.delay(attempt);
+            long left;
+            while (!stopping && (left = until - System.currentTimeMillis()) > 0) {
+                try {
+                    Thread.sleep(Math.min(left, Config.DL_SEGMENT_POLL_INTERVAL));
+                } catch (InterruptedException e) { }
+            }
+        }
+
+        private void open() throws IOException {
+            if (httpc == null) httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
+
+            long from, to;
+            synchronized (seg) {
+                from = seg.pos;
+                to = seg.end - 1;
+            }
+
+            req = new HttpGet(url);
+            req.addHeader("Range", "bytes=" + from + "-" + to);
+            boolean home = mirror.equals(state.getCurrentMirror());
+            // a changed file comes back as a 200, which fails the download below
+            if (home && state.getValidator() != null) req.addHeader("If-Range", state.getValidator());
+
+            HttpResponse resp = httpc.execute(req);
+            int statusCode = resp.getStatusLine().getStatusCode();
+            if (!home && (statusCode != 206 || DownloadTask.getRangeTotal(resp) != state.getTotalSize())) {
+                // another mirror's answer is no reason to fail the download
+                Log.w(TAG, host + " answered range request with " + statusCode + ", not using it");
+                mirrorRefused = true;
+                throw new IOException("mirror refused range");
+            }
+            if (statusCode != 206) {
+                Log.w(TAG, "server answered range request with " + statusCode);
+                fail(statusCode == 412 || statusCode == 200 ? DownloadResult.FAILED_CANNOT_RESUME : DownloadResult.FAILED_HTTP_ERROR_CODE);
+                throw new IOException("unexpected HTTP status " + statusCode);
+            }
+            in = resp.getEntity().getContent();
+        }
+
+        /**
+         * @return true once the segment is complete, false if told to stop
+         */
+        private boolean copy() throws IOException {
+            synchronized (seg) {
+                writtenTo = seg.pos;
+            }
+            boolean complete;
+            try {
+                complete = read();
+                // what was claimed from the segment has to reach the file
+                writer.flush();
+            } catch (IOException e) {
+                unclaim();
+                throw e;
+            }
+            return complete;
+        }
+
+        private boolean read() throws IOException {
+            while (!stopping) {
+                int nRead = in.read(buf);
+                if (nRead == -1) {
+                    if (seg.remaining() > 0) throw new IOException("premature end of segment");
+                    return true;
+                }
+                sizer.onRead(buf.length, nRead);
+                lane.acquire(nRead);
+
+                // claimed before writing so nobody steals the range meanwhile
+                int allowed;
+                long at;
+                synchronized (seg) {
+                    allowed = (int) Math.min(nRead, seg.end - seg.pos);
+                    at = seg.pos;
+                    seg.pos += allowed;
+                }
+
+                if (allowed > 0) {
+                    writer.write(at, buf, 0, allowed);
+                    mirrorBytes += allowed;
+                }
+                if (sizer.getSize() != buf.length) {
+                    // the writer has copied what it needed out of the old one
+                    buf = new byte[sizer.getSize()];
+                    bufferSize = buf.length;
+                }
+
+                if (allowed < nRead || seg.remaining() == 0) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Gives back whatever was claimed from the segment but never reached
+         * the file, so the next connection fetches it again.
+         */
+        private void unclaim() {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                writer.discard();
+            }
+            synchronized (seg) {
+                if (seg.pos > writtenTo) seg.pos = writtenTo;
+            }
+        }
+
+        @Override
+        public void onWritten(long pos, byte[] data, int off, int len) {
+            writtenTo = pos + len;
+            digest.update(pos, data, off, len);
+            journal.markWritten(pos, pos + len);
+            state.incTotalDone(len);
+        }
+
+        private void closeRequest() {
+            // abort rather than close: closing the entity would drain the rest of the body
+            HttpGet r = req;
+            if (r != null) r.abort();
+            req = null;
+            in = null;
+        }
+
+        void abort() {
+            HttpGet r = req;
+            if (r != null) r.abort();
+        }
+
+        void join() {
+            while (true) {
+                try {
+                    done.await();
+                    return;
+                } catch (InterruptedException e) { }
+            }
+        }
+    }
+}
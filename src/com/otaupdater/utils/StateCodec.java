@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import com.otaupdater.utils.DownloadTask.DownloadResult;
+
+/**
+ * Binary format for {@link DlState}, {@link RomInfo} and {@link KernelInfo},
+ * used both for the state log and for parcels. Everything is written field
+ * by field, no reflection; strings are a UTF-8 byte count followed by the
+ * bytes, with -1 for null.
+ *
+ * Each top-level value starts with the format version. New fields go at the
+ * end and are only read when the version says they are there, so anything
+ * written by an older build still reads back.
+ */
+public class StateCodec {
+    public static final int VERSION = 1;
+
+    private static final int TYPE_ROM = 1;
+    private static final int TYPE_KERNEL = 2;
+
+    private StateCodec() {
+    }
+
+    public static byte[] encode(DlState state) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            writeState(new DataOutputStream(bytes), state);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // can't happen writing to memory
+        }
+    }
+
+    public static byte[] encode(RomInfo info) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream os = new DataOutputStream(bytes);
+            os.writeByte(VERSION);
+            writeRomInfo(os, info);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] encode(KernelInfo info) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream os = new DataOutputStream(bytes);
+            os.writeByte(VERSION);
+            writeKernelInfo(os, info);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static DlState decodeState(byte[] data) throws IOException {
+        return readState(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static RomInfo decodeRomInfo(byte[] data) throws IOException {
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(data));
+        readVersion(is);
+        return readRomInfo(is);
+    }
+
+    public static KernelInfo decodeKernelInfo(byte[] data) throws IOException {
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(data));
+        readVersion(is);
+        return readKernelInfo(is);
+    }
+
+    public static void writeState(DataOutput os, DlState state) throws IOException {
+        os.writeByte(VERSION);
+        if (state.isRomDownload()) {
+            os.writeByte(TYPE_ROM);
+            writeRomInfo(os, state.getRomInfo());
+        } else {
+            os.writeByte(TYPE_KERNEL);
+            writeKernelInfo(os, state.getKernelInfo());
+        }
+
+        os.writeInt(state.getId());
+        os.writeLong(state.getTotalSize());
+        os.writeLong(state.getTotalDone());
+        os.writeInt(state.getStatus());
+        os.writeInt(state.getPriority());
+        os.writeInt(state.getNumRedirects());
+        writeString(os, state.getRedirectURL());
+        os.writeInt(state.getNumFailed());
+        os.writeInt(state.getRetryAfter());
+        writeString(os, state.getETag());
+        writeBytes(os, state.getDigestState());
+        DownloadResult result = state.getResult();
+        writeString(os, result == null ? null : result.name());
+        os.writeBoolean(state.isPausing());
+        os.writeBoolean(state.isContinuing());
+        os.writeBoolean(state.wasOneTimeNotifShown());
+
+        TransferStats stats = state.getTransferStats();
+        os.writeLong(stats.getStorageStalls());
+        os.writeLong(stats.getStorageStallMs());
+        os.writeLong(stats.getNetworkStalls());
+        os.writeLong(stats.getNetworkStallMs());
+        os.writeLong(stats.getReconnects());
+        os.writeLong(stats.getReconnectMs());
+        writeString(os, state.getLastModified());
+        os.writeLong(state.getRetryAt());
+        writeString(os, state.getMirrorURL());
+        os.writeBoolean(state.isDeltaFailed());
+        os.writeLong(stats.getBlockReusedBytes());
+        os.writeLong(stats.getBlockFetchedBytes());
+        os.writeLong(stats.getReads());
+        os.writeLong(stats.getReadBytes());
+        writeString(os, stats.getTunedNetwork());
+        os.writeInt(stats.getTunedBufferSize());
+        os.writeLong(stats.getTunedSegmentSize());
+        os.writeInt(state.getWeight());
+    }
+
+    public static DlState readState(DataInput is) throws IOException {
+        readVersion(is);
+        DlState state;
+        int type = is.readUnsignedByte();
+        switch (type) {
+        case TYPE_ROM:
+            state = new DlState(readRomInfo(is));
+            break;
+        case TYPE_KERNEL:
+            state = new DlState(readKernelInfo(is));
+            break;
+        default:
+            throw new IOException("unknown download type " + type);
+        }
+
+        state.setId(is.readInt());
+        state.setTotalSize(is.readLong());
+        state.setTotalDone(is.readLong());
+        state.setStatus(is.readInt());
+        state.setPriority(is.readInt());
+        state.setNumRedirects(is.readInt());
+        state.setRedirectURL(readString(is));
+        state.setNumFailed(is.readInt());
+        state.setRetryAfter(is.readInt());
+        state.setETag(readString(is));
+        state.setDigestState(readBytes(is));
+        String result = readString(is);
+        if (result != null) {
+            try {
+                state.setResult(DownloadResult.valueOf(result));
+            } catch (IllegalArgumentException e) {
+                // result from a newer build, it's only informational
+            }
+        }
+        state.setPausing(is.readBoolean());
+        state.setContinuing(is.readBoolean());
+        state.setOneTimeNotifShown(is.readBoolean());
+
+        TransferStats stats = state.getTransferStats();
+        stats.addStorageStalls(is.readLong(), is.readLong());
+        stats.addNetworkStalls(is.readLong(), is.readLong());
+        stats.addReconnects(is.readLong(), is.readLong());
+        state.setLastModified(readString(is));
+        state.setRetryAt(is.readLong());
+        state.setMirrorURL(readString(is));
+        state.setDeltaFailed(is.readBoolean());
+        stats.addBlockReuse(is.readLong(), is.readLong());
+        stats.addReads(is.readLong(), is.readLong());
+        stats.setTuning(readString(is), is.readInt(), is.readLong());
+        state.setWeight(is.readInt());
+        return state;
+    }
+
+    private static void writeRomInfo(DataOutput os, RomInfo info) throws IOException {
+        writeString(os, info.romName);
+        writeString(os, info.version);
+        writeString(os, info.changelog);
+        writeString(os, info.url);
+        writeString(os, info.md5);
+        writeDate(os, info.date);
+        writeStrings(os, info.mirrors);
+        writeString(os, info.deltaUrl);
+        writeString(os, info.deltaFrom);
+    }
+
+    private static RomInfo readRomInfo(DataInput is) throws IOException {
+        RomInfo info = new RomInfo(readString(is), readString(is), readString(is),
+                readString(is), readString(is), readDate(is));
+        info.mirrors = readStrings(is);
+        info.deltaUrl = readString(is);
+        info.deltaFrom = readString(is);
+        return info;
+    }
+
+    private static void writeKernelInfo(DataOutput os, KernelInfo info) throws IOException {
+        writeString(os, info.kernelName);
+        writeString(os, info.version);
+        writeString(os, info.changelog);
+        writeString(os, info.url);
+        writeString(os, info.md5);
+        writeDate(os, info.date);
+        writeStrings(os, info.mirrors);
+    }
+
+    private static KernelInfo readKernelInfo(DataInput is) throws IOException {
+        KernelInfo info = new KernelInfo(readString(is), readString(is), readString(is),
+                readString(is), readString(is), readDate(is));
+        info.mirrors = readStrings(is);
+        return info;
+    }
+
+    private static int readVersion(DataInput is) throws IOException {
+        int version = is.readUnsignedByte();
+        if (version < 1 || version > VERSION) throw new IOException("unsupported format version " + version);
+        return version;
+    }
+
+    private static void writeString(DataOutput os, String str) throws IOException {
+        writeBytes(os, str == null ? null : str.getBytes("UTF-8"));
+    }
+
+    private static String readString(DataInput is) throws IOException {
+        byte[] bytes = readBytes(is);
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    private static void writeStrings(DataOutput os, String[] strs) throws IOException {
+        os.writeInt(strs == null ? -1 : strs.length);
+        if (strs == null) return;
+        for (String str : strs) writeString(os, str);
+    }
+
+    private static String[] readStrings(DataInput is) throws IOException {
+        int len = is.readInt();
+        if (len == -1) return null;
+        if (len < 0 || len > Config.STATE_LOG_MAX_RECORD / 4) throw new IOException("bad count " + len);
+        String[] strs = new String[len];
+        for (int q = 0; q < len; q++) strs[q] = readString(is);
+        return strs;
+    }
+
+    private static void writeBytes(DataOutput os, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            os.writeInt(-1);
+        } else {
+            os.writeInt(bytes.length);
+            os.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInput is) throws IOException {
+        int len = is.readInt();
+        if (len == -1) return null;
+        if (len < 0 || len > Config.STATE_LOG_MAX_RECORD) throw new IOException("bad length " + len);
+        byte[] bytes = new byte[len];
+        is.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeDate(DataOutput os, Date date) throws IOException {
+        os.writeBoolean(date != null);
+        if (date != null) os.writeLong(date.getTime());
+    }
+
+    private static Date readDate(DataInput is) throws IOException {
+        return is.readBoolean() ? new Date(is.readLong()) : null;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Append-only log of download service state. Every change is one small
+ * record: a progress update costs a few dozen bytes, only status changes
+ * carry the whole {@link DlState}. Records are framed with a length and a
+ * CRC, so replay stops at the first torn record a crash left behind and
+ * still returns the last consistent state.
+ *
+ * Once enough has been appended the log is compacted: the current state is
+ * written to a temp file as a fresh log, synced, and renamed over the old
+ * one.
+ *
+ * Logs from before {@link StateCodec} hold serialized objects; they still
+ * load, and the compaction that follows loading rewrites them in the new
+ * format.
+ */
+public class StateLog {
+    private static final String TAG = Config.LOG_TAG + "StateLog";
+
+    private static final int MAGIC = 0x4f54534c; //OTSL
+    /** 1 stored states with ObjectOutputStream, 2 with {@link StateCodec} */
+    private static final int VERSION = 2;
+
+    private static final int REC_STATE = 1;
+    private static final int REC_PROGRESS = 2;
+    private static final int REC_QUEUE = 3;
+
+    private final File file;
+    private final File tmpFile;
+
+    private DataOutputStream out = null;
+    private long appended = 0;
+
+    public StateLog(File file) {
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".tmp");
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Replays the log into downloads and queue, which are cleared first.
+     * Compact right after loading, or new records may land behind a torn one
+     * and never be read back.
+     *
+     * @return false if there was no log to read
+     */
+    public synchronized boolean load(SparseArray<DlState> downloads, List<Integer> queue) {
+        downloads.clear();
+        queue.clear();
+
+        DataInputStream is = null;
+        int nRecords = 0;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = 0;
+            if (is.readInt() != MAGIC || (version = is.readInt()) < 1 || version > VERSION) {
+                Log.w(TAG, "unknown log format, ignoring");
+                return false;
+            }
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                int type;
+                try {
+                    type = is.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int len = is.readInt();
+                if (len < 0 || len > Config.STATE_LOG_MAX_RECORD) break;
+                byte[] payload = new byte[len];
+                is.readFully(payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if (is.readInt() != (int) crc.getValue()) break;
+
+                apply(version, type, payload, downloads, queue);
+                nRecords++;
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (EOFException e) {
+            // torn record at the end, everything before it is good
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (IOException e) { }
+            }
+        }
+        Log.v(TAG, "replayed " + nRecords + " records");
+        return true;
+    }
+
+    private static void apply(int version, int type, byte[] payload, SparseArray<DlState> downloads, List<Integer> queue)
+            throws IOException, ClassNotFoundException {
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(payload));
+        switch (type) {
+        case REC_STATE:
+            int id = is.readInt();
+            DlState state = version == 1 ? (DlState) new ObjectInputStream(is).readObject() : StateCodec.readState(is);
+            downloads.put(id, state);
+            break;
+        case REC_PROGRESS:
+            DlState existing = downloads.get(is.readInt());
+            long totalSize = is.readLong();
+            long totalDone = is.readLong();
+            int status = is.readInt();
+            if (existing != null) {
+                existing.setTotalSize(totalSize);
+                existing.setTotalDone(totalDone);
+                existing.setStatus(status);
+            }
+            break;
+        case REC_QUEUE:
+            queue.clear();
+            int n = is.readInt();
+            for (int q = 0; q < n; q++) queue.add(is.readInt());
+            break;
+        default:
+            Log.w(TAG, "skipping unknown record type " + type);
+        }
+    }
+
+    /**
+     * Records everything about state, needed whenever more than its progress changed.
+     */
+    public synchronized void appendState(DlState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bytes);
+        writeState(os, state);
+        append(REC_STATE, bytes.toByteArray());
+    }
+
+    public synchronized void appendProgress(DlState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        DataOutputStream os = new DataOutputStream(bytes);
+        os.writeInt(state.getId());
+        os.writeLong(state.getTotalSize());
+        os.writeLong(state.getTotalDone());
+        os.writeInt(state.getStatus());
+        append(REC_PROGRESS, bytes.toByteArray());
+    }
+
+    public synchronized void appendQueue(List<Integer> queue) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 4 * queue.size());
+        DataOutputStream os = new DataOutputStream(bytes);
+        writeQueue(os, queue);
+        append(REC_QUEUE, bytes.toByteArray());
+    }
+
+    public synchronized boolean needsCompaction() {
+        return appended >= Config.STATE_LOG_COMPACT_BYTES;
+    }
+
+    /**
+     * Replaces the log with one holding just the given state.
+     */
+    public synchronized void compact(SparseArray<DlState> downloads, List<Integer> queue) throws IOException {
+        close();
+
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream os = new DataOutputStream(fos);
+            writeHeader(os);
+            for (int q = 0; q < downloads.size(); q++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                writeState(new DataOutputStream(bytes), downloads.valueAt(q));
+                writeRecord(os, REC_STATE, bytes.toByteArray());
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeQueue(new DataOutputStream(bytes), queue);
+            writeRecord(os, REC_QUEUE, bytes.toByteArray());
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("failed to replace " + file.getName());
+        }
+        appended = 0;
+    }
+
+    public synchronized void close() {
+        if (out == null) return;
+        try { out.close(); }
+        catch (IOException e) { }
+        out = null;
+    }
+
+    private void append(int type, byte[] payload) throws IOException {
+        if (out == null) {
+            boolean fresh = !file.exists() || file.length() == 0;
+            out = new DataOutputStream(new FileOutputStream(file, true));
+            if (fresh) writeHeader(out);
+        }
+        writeRecord(out, type, payload);
+        out.flush();
+        appended += payload.length + 9;
+    }
+
+    private static void writeHeader(DataOutputStream os) throws IOException {
+        os.writeInt(MAGIC);
+        os.writeInt(VERSION);
+    }
+
+    private static void writeRecord(DataOutputStream os, int type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        // one write per record, so a crash can only tear the last one
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 9);
+        DataOutputStream rec = new DataOutputStream(bytes);
+        rec.writeByte(type);
+        rec.writeInt(payload.length);
+        rec.write(payload);
+        rec.writeInt((int) crc.getValue());
+        bytes.writeTo(os);
+    }
+
+    private static void writeState(DataOutputStream os, DlState state) throws IOException {
+        os.writeInt(state.getId());
+        StateCodec.writeState(os, state);
+    }
+
+    private static void writeQueue(DataOutputStream os, List<Integer> queue) throws IOException {
+        os.writeInt(queue.size());
+        for (int id : queue) os.writeInt(id);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Writes download state to a {@link StateLog} on a background thread.
+ * Changes are only marked when they happen; whatever piles up within
+ * {@link Config#STATE_PERSIST_DELAY} ms goes out as one write, so a burst
+ * like cancelling every download costs one round of I/O, and a download
+ * changed several times in between is written once.
+ *
+ * Safe to call from any thread.
+ */
+public class StatePersister {
+    private static final String TAG = Config.LOG_TAG + "Persister";
+
+    private static final int PENDING_PROGRESS = 1;
+    private static final int PENDING_FULL = 2;
+
+    private final StateLog log;
+    private final ThreadPoolExecutor executor;
+
+    /** every download we know of, for compaction */
+    private final SparseArray<DlState> tracked = new SparseArray<DlState>();
+    private final SparseArray<Integer> pending = new SparseArray<Integer>();
+    private ArrayList<Integer> pendingQueue = null;
+    private ArrayList<Integer> lastQueue = new ArrayList<Integer>();
+    private boolean compactPending = false;
+    private boolean writeScheduled = false;
+
+    private long nWrites = 0;
+    private long totalWriteNanos = 0;
+    private long maxWriteNanos = 0;
+
+    public StatePersister(StateLog log) {
+        this.log = log;
+        // one thread keeps writes in order; it exits when idle so nothing needs shutting down
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "OTA-state-writer");
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Replaces everything in the log with the given state, e.g. after loading it.
+     */
+    public synchronized void replaceAll(SparseArray<DlState> downloads, List<Integer> queue) {
+        tracked.clear();
+        pending.clear();
+        for (int q = 0; q < downloads.size(); q++) {
+            tracked.put(downloads.keyAt(q), downloads.valueAt(q));
+        }
+        lastQueue = new ArrayList<Integer>(queue);
+        pendingQueue = null;
+        compactPending = true;
+        schedule();
+    }
+
+    /**
+     * Marks state and the queue as changed.
+     *
+     * @param queue the queued ids in order, copied right away
+     */
+    public synchronized void saveState(DlState state, List<Integer> queue) {
+        tracked.put(state.getId(), state);
+        pending.put(state.getId(), PENDING_FULL);
+        pendingQueue = new ArrayList<Integer>(queue);
+        schedule();
+    }
+
+    /**
+     * Marks only the byte counts and status of state as changed.
+     */
+    public synchronized void saveProgress(DlState state) {
+        tracked.put(state.getId(), state);
+        if (pending.get(state.getId()) == null) pending.put(state.getId(), PENDING_PROGRESS);
+        schedule();
+    }
+
+    /**
+     * Blocks until everything marked so far is on disk, or timeout ms pass.
+     *
+     * @return false if it timed out
+     */
+    public boolean flush(long timeout) {
+        final CountDownLatch done = new CountDownLatch(1);
+        synchronized (this) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Flushes and closes the log; it is reopened if anything is saved later.
+     */
+    public void close(long timeout) {
+        flush(timeout);
+        log.close();
+        Log.v(TAG, getStats());
+    }
+
+    public synchronized String getStats() {
+        if (nWrites == 0) return "no writes";
+        return nWrites + " writes, avg " + (totalWriteNanos / nWrites / 1000) + "us, max " + (maxWriteNanos / 1000) + "us";
+    }
+
+    public synchronized long getWriteCount() {
+        return nWrites;
+    }
+
+    public synchronized long getMaxWriteMicros() {
+        return maxWriteNanos / 1000;
+    }
+
+    public synchronized long getAvgWriteMicros() {
+        return nWrites == 0 ? 0 : totalWriteNanos / nWrites / 1000;
+    }
+
+    private void schedule() {
+        if (writeScheduled) return;
+        writeScheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(Config.STATE_PERSIST_DELAY);
+                } catch (InterruptedException e) { }
+                write();
+            }
+        });
+    }
+
+    /**
+     * Runs on the writer thread only.
+     */
+    private void write() {
+        ArrayList<DlState> full = new ArrayList<DlState>();
+        ArrayList<DlState> progress = new ArrayList<DlState>();
+        ArrayList<Integer> queue;
+        boolean compact;
+        SparseArray<DlState> all = null;
+        synchronized (this) {
+            writeScheduled = false;
+            for (int q = 0; q < pending.size(); q++) {
+                DlState state = tracked.get(pending.keyAt(q));
+                if (state == null) continue;
+                if (pending.valueAt(q) == PENDING_FULL) full.add(state);
+                else progress.add(state);
+            }
+            pending.clear();
+            queue = pendingQueue;
+            pendingQueue = null;
+            if (queue != null) lastQueue = queue;
+
+            compact = compactPending || log.needsCompaction();
+            compactPending = false;
+            if (compact) {
+                all = new SparseArray<DlState>(tracked.size());
+                for (int q = 0; q < tracked.size(); q++) all.put(tracked.keyAt(q), tracked.valueAt(q));
+                queue = lastQueue;
+            }
+        }
+        if (!compact && full.isEmpty() && progress.isEmpty() && queue == null) return;
+
+        long start = System.nanoTime();
+        try {
+            if (compact) {
+                log.compact(all, queue);
+            } else {
+                for (DlState state : full) log.appendState(state);
+                for (DlState state : progress) log.appendProgress(state);
+                if (queue != null) log.appendQueue(queue);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (this) {
+            nWrites++;
+            totalWriteNanos += elapsed;
+            if (elapsed > maxWriteNanos) maxWriteNanos = elapsed;
+        }
+        if (elapsed > Config.STATE_PERSIST_SLOW_NANOS) {
+            Log.w(TAG, "slow state write: " + (elapsed / 1000000) + "ms" + (compact ? " (compaction)" : ""));
+        }
+    }
+}
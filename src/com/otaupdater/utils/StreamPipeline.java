@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+
+import com.otaupdater.utils.BufferRing.Buffer;
+import com.otaupdater.utils.DownloadTask.DownloadResult;
+
+/**
+ * Copies a single download stream to disk on two threads. The calling thread
+ * only reads from the network into pooled buffers; a writer thread drains
+ * them into the file in aligned blocks (see {@link BlockWriter}) and feeds
+ * the digest and journal. A slow write no longer holds up the socket (and
+ * the TCP window with it) until all buffers are queued, at which point the
+ * reader has to wait.
+ *
+ * How much each read asks for follows the stream's rate (see
+ * {@link ReadSizer}), starting from what {@link TransferTuner} remembers
+ * for the kind of network we're on.
+ *
+ * If the stream breaks while we're still connected, it's reopened from
+ * where reading stopped, with a jittered {@link Backoff} between attempts.
+ */
+class StreamPipeline {
+    /**
+     * Opens the download again partway through.
+     */
+    interface Reconnector {
+        /**
+         * Drops the old connection and opens a new one.
+         *
+         * @return a stream starting at offset, or null if the server won't resume there
+         */
+        InputStream reopen(long offset) throws IOException;
+    }
+
+    private static final String TAG = Config.LOG_TAG + "DLPipe";
+
+    private final DownloadTask task;
+    private final DlState state;
+    private final RandomAccessFile out;
+    private final DownloadJournal journal;
+    private final DownloadDigest digest;
+    private final Reconnector reconnector;
+
+    private final TransferTuner tuner;
+    private final String network;
+    private final ReadSizer sizer;
+    private final RateGovernor.Lane lane;
+    private final BufferRing ring;
+
+    private volatile Throwable writerError = null;
+
+    /**
+     * @param journal may be null if the download can't be resumed anyway
+     * @param reconnector null if the stream can't be reopened, read errors then fail the download
+     */
+    StreamPipeline(DownloadTask task, DlState state, RandomAccessFile out,
+            DownloadJournal journal, DownloadDigest digest, Reconnector reconnector) {
+        this.task = task;
+        this.state = state;
+        this.out = out;
+        this.journal = journal;
+        this.digest = digest;
+        this.reconnector = reconnector;
+
+        tuner = TransferTuner.getInstance(task.getContext());
+        network = TransferTuner.getNetworkType(task.getContext());
+        sizer = new ReadSizer(tuner.getBufferSize(network), Config.DL_TUNE_MEMORY / Config.DL_PIPELINE_BUFFERS);
+        ring = new BufferRing(Config.DL_PIPELINE_BUFFERS, sizer.getSize());
+        lane = task.newRateLane();
+    }
+
+    /**
+     * Copies in to the file until it ends or the download has to stop.
+     * Everything read before stopping is written out before this returns.
+     *
+     * @return the result to finish with, or null once in is exhausted
+     */
+    DownloadResult run(InputStream in) throws IOException {
+        Writer writer = new Writer(out.getChannel());
+        TaskExecutors.TRANSFER.execute(writer);
+
+        // the writer may lag behind, so keep our own count of what was read
+        long readPos = state.getTotalDone();
+        try {
+            while (true) {
+                DownloadResult stop = task.checkInterrupted();
+                if (stop != null) return stop;
+
+                Buffer buf;
+                try {
+                    buf = ring.takeFree();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (buf == null) break; // writer failed, reported below
+                buf.resize(sizer.getSize());
+
+                boolean eof = false;
+                try {
+                    int handoff = Math.min(Config.DL_PIPELINE_HANDOFF_MIN, buf.data.length / 2);
+                    while (buf.len < handoff) {
+                        int asked = buf.room();
+                        int nRead = in.read(buf.data, buf.len, asked);
+                        if (nRead == -1) {
+                            eof = true;
+                            break;
+                        }
+                        sizer.onRead(asked, nRead);
+                        lane.acquire(nRead);
+                        buf.len += nRead;
+                        readPos += nRead;
+                    }
+                } catch (IOException e) {
+                    hand(buf);
+                    Log.w(TAG, "IOException reading at " + readPos + ": " + e.getMessage());
+                    stop = reconnect(readPos, e);
+                    if (stop != null) return stop;
+                    in = current;
+                    continue;
+                }
+
+                hand(buf);
+                if (eof) break;
+            }
+        } finally {
+            closeCurrent();
+            ring.putEnd();
+            writer.await();
+
+            TransferStats stats = state.getTransferStats();
+            stats.addStorageStalls(ring.getProducerWaits(), ring.getProducerWaitMillis());
+            stats.addNetworkStalls(ring.getConsumerWaits(), ring.getConsumerWaitMillis());
+            stats.addReads(sizer.getReads(), sizer.getBytes());
+            stats.setTuning(network, sizer.getSize(), 0);
+            tuner.record(network, sizer.getSize(), 0, sizer.getRate());
+            Log.v(TAG, "pipeline done, " + stats);
+        }
+
+        Throwable e = writerError;
+        if (e == null) return null;
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        throw new IOException(e.getMessage());
+    }
+
+    private InputStream current = null;
+
+    /**
+     * Retries until the stream is open again at offset, leaving it in
+     * {@link #current}.
+     *
+     * @param error what broke the stream, rethrown if it can't be reopened
+     * @return the result to finish with, or null once reconnected
+     */
+    private DownloadResult reconnect(long offset, IOException error) throws IOException {
+        long start = System.currentTimeMillis();
+        for (int attempt = 0; ; attempt++) {
+            // don't wait for the broadcast, the error may be the first sign
+            if (!NetworkMonitor.getInstance(task.getContext()).refresh().isConnected()) {
+                Log.v(TAG, "pausing - need data");
+                state.updateStatus(DlState.STATUS_PAUSED_FOR_DATA);
+                return state.setResult(DownloadResult.PAUSED);
+            }
+            if (reconnector == null) throw error;
+            if (attempt >= Config.DL_RECONNECT_MAX_TRIES) {
+                throw new IOException("gave up reconnecting after " + attempt + " tries");
+            }
+
+            DownloadResult stop = sleep(Backoff.delay(attempt));
+            if (stop != null) return stop;
+
+            // the caller's stream is theirs to close, any we opened is ours
+            closeCurrent();
+            try {
+                current = reconnector.reopen(offset);
+            } catch (IOException e) {
+                Log.v(TAG, "reconnect attempt " + (attempt + 1) + " failed: " + e.getMessage());
+                continue;
+            }
+            if (current == null) {
+                Log.w(TAG, "server won't resume at " + offset);
+                state.updateStatus(DlState.STATUS_FAILED);
+                return state.setResult(DownloadResult.FAILED_CANNOT_RESUME);
+            }
+
+            long elapsed = System.currentTimeMillis() - start;
+            state.getTransferStats().addReconnects(1, elapsed);
+            Log.v(TAG, "reconnected at " + offset + " after " + elapsed + "ms");
+            return null;
+        }
+    }
+
+    private void closeCurrent() {
+        if (current == null) return;
+        try { current.close(); }
+        catch (IOException e) { }
+        current = null;
+    }
+
+    /**
+     * Waits, but stops early if the download is paused or cancelled.
+     */
+    private DownloadResult sleep(long millis) {
+        long until = System.currentTimeMillis() + millis;
+        long left;
+        while ((left = until - System.currentTimeMillis()) > 0) {
+            DownloadResult stop = task.checkInterrupted();
+            if (stop != null) return stop;
+            try {
+                Thread.sleep(Math.min(left, Config.DL_SEGMENT_POLL_INTERVAL));
+            } catch (InterruptedException e) { }
+        }
+        return task.checkInterrupted();
+    }
+
+    private void hand(Buffer buf) {
+        if (buf.len == 0) ring.putFree(buf);
+        else ring.putFull(buf);
+    }
+
+    private class Writer implements Runnable, BlockWriter.Listener {
+        private final BlockWriter blocks;
+        /** where the next buffer goes */
+        private long pos = state.getTotalDone();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Writer(FileChannel channel) {
+            blocks = new BlockWriter(channel, this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Buffer buf = ring.takeFull();
+                    if (buf == null) break;
+                    blocks.write(pos, buf.data, 0, buf.len);
+                    pos += buf.len;
+                    ring.putFree(buf);
+                }
+                blocks.flush();
+            } catch (Throwable e) {
+                writerError = e;
+                ring.close();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Waits for {@link #run} to return, interrupts or not.
+         */
+        void await() {
+            while (true) {
+                try {
+                    done.await();
+                    return;
+                } catch (InterruptedException e) { }
+            }
+        }
+
+        @Override
+        public void onWritten(long at, byte[] buf, int off, int len) throws IOException {
+            digest.update(at, buf, off, len);
+            state.incTotalDone(len);
+            if (journal != null) {
+                journal.markWritten(at, at + len);
+                if (journal.isCheckpointDue()) {
+                    journal.checkpoint(out.getFD());
+                    state.setDigestState(digest.getState());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.os.AsyncTask;
+import android.os.Build;
+
+/**
+ * Thread pools for the app's background work, split by role. Since API 11
+ * a plain {@link AsyncTask#execute} runs everything one at a time on a
+ * single process-wide executor, so one long download would hold up every
+ * update check and login behind it.
+ */
+public class TaskExecutors {
+    private static final long KEEP_ALIVE = 30; //seconds
+
+    /** {@link DownloadTask}s, bounded; the scheduler keeps it below this anyway */
+    public static final Executor DOWNLOAD = newPool("OTA-download", Config.DL_EXECUTOR_THREADS);
+
+    /** short metadata fetches and API calls */
+    public static final Executor NETWORK = newPool("OTA-network", Config.NETWORK_EXECUTOR_THREADS);
+
+    /**
+     * Threads working for a running download besides its own: a
+     * {@link SegmentedDownload} worker per connection, or one
+     * {@link StreamPipeline} writer. A download needs at most
+     * {@link Config#DL_MAX_SEGMENTS}, and at most DL_EXECUTOR_THREADS run at
+     * once, so nothing ever waits in this pool's queue.
+     */
+    static final Executor TRANSFER = newPool("OTA-transfer", Config.DL_EXECUTOR_THREADS * Config.DL_MAX_SEGMENTS);
+
+    private TaskExecutors() {
+    }
+
+    public static void executeDownload(AsyncTask<Void, ?, ?> task) {
+        execute(task, DOWNLOAD);
+    }
+
+    public static void executeNetwork(AsyncTask<Void, ?, ?> task) {
+        execute(task, NETWORK);
+    }
+
+    @TargetApi(11)
+    private static void execute(AsyncTask<Void, ?, ?> task, Executor executor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(executor);
+        } else {
+            // before honeycomb execute() already runs on a shared pool
+            task.execute();
+        }
+    }
+
+    private static Executor newPool(final String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + count.getAndIncrement());
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.Serializable;
+
+/**
+ * Counters describing how a download went, kept with its {@link DlState}
+ * and accumulated across resumes.
+ */
+public class TransferStats implements Serializable {
+    private static final long serialVersionUID = 3391187205836542118L;
+
+    /** times the network reader waited for the storage writer */
+    private long storageStalls = 0;
+    private long storageStallMs = 0;
+
+    /** times the storage writer waited for the network reader */
+    private long networkStalls = 0;
+    private long networkStallMs = 0;
+
+    /** times the stream broke and was picked up again, and how long that took */
+    private long reconnects = 0;
+    private long reconnectMs = 0;
+
+    /** bytes copied from an older download by {@link BlockReuse}, and bytes it fetched */
+    private long blockReusedBytes = 0;
+    private long blockFetchedBytes = 0;
+
+    /** reads from the network and the bytes they returned, to tell bytes per read call */
+    private long reads = 0;
+    private long readBytes = 0;
+
+    /** what {@link TransferTuner} last settled on, and on which kind of network */
+    private String tunedNetwork = null;
+    private int tunedBufferSize = 0;
+    private long tunedSegmentSize = 0;
+
+    public synchronized void addStorageStalls(long count, long millis) {
+        storageStalls += count;
+        storageStallMs += millis;
+    }
+
+    public synchronized void addNetworkStalls(long count, long millis) {
+        networkStalls += count;
+        networkStallMs += millis;
+    }
+
+    public synchronized void addReconnects(long count, long millis) {
+        reconnects += count;
+        reconnectMs += millis;
+    }
+
+    public synchronized void addBlockReuse(long reused, long fetched) {
+        blockReusedBytes += reused;
+        blockFetchedBytes += fetched;
+    }
+
+    public synchronized void addReads(long count, long bytes) {
+        reads += count;
+        readBytes += bytes;
+    }
+
+    /**
+     * @param segmentSize 0 if the download wasn't segmented
+     */
+    public synchronized void setTuning(String network, int bufferSize, long segmentSize) {
+        tunedNetwork = network;
+        tunedBufferSize = bufferSize;
+        tunedSegmentSize = segmentSize;
+    }
+
+    public synchronized long getStorageStalls() {
+        return storageStalls;
+    }
+
+    public synchronized long getStorageStallMs() {
+        return storageStallMs;
+    }
+
+    public synchronized long getNetworkStalls() {
+        return networkStalls;
+    }
+
+    public synchronized long getNetworkStallMs() {
+        return networkStallMs;
+    }
+
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    public synchronized long getReconnectMs() {
+        return reconnectMs;
+    }
+
+    public synchronized long getBlockReusedBytes() {
+        return blockReusedBytes;
+    }
+
+    public synchronized long getBlockFetchedBytes() {
+        return blockFetchedBytes;
+    }
+
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    public synchronized String getTunedNetwork() {
+        return tunedNetwork;
+    }
+
+    public synchronized int getTunedBufferSize() {
+        return tunedBufferSize;
+    }
+
+    public synchronized long getTunedSegmentSize() {
+        return tunedSegmentSize;
+    }
+
+    public synchronized void reset() {
+        storageStalls = 0;
+        storageStallMs = 0;
+        networkStalls = 0;
+        networkStallMs = 0;
+        reconnects = 0;
+        reconnectMs = 0;
+        blockReusedBytes = 0;
+        blockFetchedBytes = 0;
+        reads = 0;
+        readBytes = 0;
+        tunedNetwork = null;
+        tunedBufferSize = 0;
+        tunedSegmentSize = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "storage stalls=" + storageStalls + " (" + storageStallMs + "ms)" +
+                ", network stalls=" + networkStalls + " (" + networkStallMs + "ms)" +
+                ", reconnects=" + reconnects + " (" + reconnectMs + "ms)" +
+                ", blocks reused=" + blockReusedBytes + " fetched=" + blockFetchedBytes +
+                ", reads=" + reads + " (" + readBytes + " bytes)" +
+                ", tuned for " + tunedNetwork + " buffer=" + tunedBufferSize + " segment=" + tunedSegmentSize;
+    }
+}
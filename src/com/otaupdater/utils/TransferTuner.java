@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.otaupdater.utils.NetworkMonitor.NetState;
+
+/**
+ * Remembers, per kind of network, the read size and segment size downloads
+ * settled on and the rate they got, so the next download starts from there
+ * rather than from the defaults; the same numbers are what the defaults
+ * should be tuned from. Kept in its own preferences file, like
+ * {@link MirrorStats}.
+ */
+class TransferTuner {
+    private static final String PREFS_NAME = "transfer_tuning";
+
+    static final String NETWORK_WIFI = "wifi";
+    /** wifi that's metered, mostly a phone's hotspot */
+    static final String NETWORK_HOTSPOT = "hotspot";
+    static final String NETWORK_MOBILE = "mobile";
+
+    private final SharedPreferences prefs;
+
+    private TransferTuner(Context ctx) {
+        prefs = ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static TransferTuner instance = null;
+    static synchronized TransferTuner getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new TransferTuner(ctx);
+        }
+        return instance;
+    }
+
+    static String getNetworkType(Context ctx) {
+        NetState net = NetworkMonitor.getInstance(ctx).getState();
+        if (!net.isWifi()) return NETWORK_MOBILE;
+        return net.isMetered() ? NETWORK_HOTSPOT : NETWORK_WIFI;
+    }
+
+    synchronized int getBufferSize(String network) {
+        return prefs.getInt(network + "_buffer", Config.DL_PIPELINE_BUFFER_SIZE);
+    }
+
+    synchronized long getSegmentSize(String network) {
+        return prefs.getLong(network + "_segment", Config.DL_SEGMENT_MIN_SPLIT);
+    }
+
+    /**
+     * @return bytes/s downloads have averaged on network, 0 if we don't know
+     */
+    synchronized long getThroughput(String network) {
+        return prefs.getLong(network + "_rate", 0);
+    }
+
+    /**
+     * @param segmentSize 0 if the download wasn't segmented
+     * @param rate        bytes/s it got, 0 if it didn't run long enough to tell
+     */
+    synchronized void record(String network, int bufferSize, long segmentSize, long rate) {
+        if (rate <= 0) return;
+        long old = getThroughput(network);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(network + "_buffer", bufferSize);
+        if (segmentSize != 0) editor.putLong(network + "_segment", segmentSize);
+        editor.putLong(network + "_rate", old == 0 ? rate : old + (rate - old) / 4);
+        editor.apply();
+    }
+}
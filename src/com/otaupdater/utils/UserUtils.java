@@ -85,7 +85,7 @@ public class UserUtils {
                         }
 
                         dlg.dismiss();
-                        new LoginTask(ctx, username, password, dlgCallback, loginCallback).execute();
+                        TaskExecutors.executeNetwork(new LoginTask(ctx, username, password, dlgCallback, loginCallback));
                     }
                 });
             }
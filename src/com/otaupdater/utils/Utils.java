@@ -38,6 +38,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import android.app.Activity;
@@ -237,6 +238,48 @@ public class Utils {
         return new SimpleDateFormat("yyyyMMdd-kkmm").format(date);
     }
 
+    /**
+     * @return the update's optional "mirrors" array, or null if it has none
+     */
+    public static String[] parseMirrors(JSONObject json) {
+        JSONArray array = json.optJSONArray("mirrors");
+        if (array == null || array.length() == 0) return null;
+        ArrayList<String> mirrors = new ArrayList<String>(array.length());
+        for (int q = 0; q < array.length(); q++) {
+            String url = array.optString(q, null);
+            if (url != null && url.length() != 0) mirrors.add(url);
+        }
+        return mirrors.isEmpty() ? null : mirrors.toArray(new String[mirrors.size()]);
+    }
+
+    /**
+     * Reads the update's optional "delta" object, {"from": version, "url": patch}.
+     */
+    public static void parseDelta(JSONObject json, RomInfo info) {
+        JSONObject delta = json.optJSONObject("delta");
+        if (delta == null) return;
+        String url = delta.optString("url", null);
+        String from = delta.optString("from", null);
+        if (url == null || url.length() == 0 || from == null || from.length() == 0) return;
+        info.deltaUrl = url;
+        info.deltaFrom = from;
+    }
+
+    public static String joinMirrors(String[] mirrors) {
+        if (mirrors == null) return null;
+        StringBuilder sb = new StringBuilder();
+        for (String url : mirrors) {
+            if (sb.length() != 0) sb.append('\n');
+            sb.append(url);
+        }
+        return sb.toString();
+    }
+
+    public static String[] splitMirrors(String mirrors) {
+        if (mirrors == null || mirrors.length() == 0) return null;
+        return mirrors.split("\n");
+    }
+
     public static boolean isRomUpdate(RomInfo info) {
         if (info == null) return false;
         if (info.date != null) {
@@ -319,8 +362,10 @@ public class Utils {
                             jsonRom.getString("version"),
                             jsonRom.getString("changelog"),
                             jsonRom.getString("url"),
+                            parseMirrors(jsonRom),
                             jsonRom.getString("md5"),
                             Utils.parseDate(jsonRom.getString("date")));
+                    parseDelta(jsonRom, info);
 
                     if (Utils.isRomUpdate(info)) {
                         cfg.storeRomUpdate(info);
@@ -343,6 +388,7 @@ public class Utils {
                             jsonKernel.getString("version"),
                             jsonKernel.getString("changelog"),
                             jsonKernel.getString("url"),
+                            parseMirrors(jsonKernel),
                             jsonKernel.getString("md5"),
                             Utils.parseDate(jsonKernel.getString("date")));
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Feeds a {@link BlockWriter} the odd-sized pieces downloads read from the
+ * network and checks that the file comes out right and that everything in
+ * between the first and last block is written on block boundaries.
+ */
+public class BlockWriterTest extends AndroidTestCase {
+    private static final int BLOCK_SIZE = 16384;
+    private static final int SIZE = 10 * BLOCK_SIZE + 1234;
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = new File(getContext().getCacheDir(), "block-writer-test");
+        file.delete();
+        DiskSpace.reserve(file, SIZE);
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    public void testOddPieces() throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        final long[] written = new long[1];
+
+        BlockWriter writer = new BlockWriter(raf.getChannel(), new BlockWriter.Listener() {
+            @Override
+            public void onWritten(long pos, byte[] buf, int off, int len) {
+                assertEquals(written[0], pos);
+                if (pos + len != SIZE) assertEquals(0, (pos + len) % BLOCK_SIZE);
+                written[0] += len;
+            }
+        }, BLOCK_SIZE);
+
+        int pos = 0;
+        Random sizes = new Random(2);
+        while (pos < SIZE) {
+            int len = Math.min(SIZE - pos, 1 + sizes.nextInt(5000));
+            writer.write(pos, data, pos, len);
+            pos += len;
+        }
+        writer.flush();
+        assertEquals(SIZE, written[0]);
+
+        byte[] back = new byte[SIZE];
+        raf.seek(0);
+        raf.readFully(back);
+        assertTrue(Arrays.equals(data, back));
+    }
+
+    public void testJumpFlushes() throws IOException {
+        final long[] ends = new long[2];
+        final int[] calls = new int[1];
+        BlockWriter writer = new BlockWriter(raf.getChannel(), new BlockWriter.Listener() {
+            @Override
+            public void onWritten(long pos, byte[] buf, int off, int len) {
+                ends[calls[0]++] = pos + len;
+            }
+        }, BLOCK_SIZE);
+
+        byte[] data = new byte[100];
+        writer.write(0, data, 0, data.length);
+        writer.write(BLOCK_SIZE * 3, data, 0, data.length);
+        writer.flush();
+        assertEquals(2, calls[0]);
+        assertEquals(100, ends[0]);
+        assertEquals(BLOCK_SIZE * 3 + 100, ends[1]);
+    }
+
+    public void testDiscard() throws IOException {
+        final int[] calls = new int[1];
+        BlockWriter writer = new BlockWriter(raf.getChannel(), new BlockWriter.Listener() {
+            @Override
+            public void onWritten(long pos, byte[] buf, int off, int len) {
+                calls[0]++;
+            }
+        }, BLOCK_SIZE);
+        writer.write(0, new byte[100], 0, 100);
+        writer.discard();
+        writer.flush();
+        assertEquals(0, calls[0]);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import junit.framework.TestCase;
+import android.util.SparseArray;
+
+/**
+ * Reads snapshots while another thread adds and removes downloads, the way
+ * binder threads meet the main thread: every snapshot has to stay the same
+ * from start to end.
+ */
+public class CopyOnWriteSparseArrayTest extends TestCase {
+    private static final int WRITES = 20000;
+
+    public void testSnapshotsDuringWrites() throws InterruptedException {
+        final CopyOnWriteSparseArray<DlState> downloads = new CopyOnWriteSparseArray<DlState>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int q = 0; q < WRITES; q++) {
+                    DlState state = new DlState((KernelInfo) null);
+                    state.setId(q % 64 + 1);
+                    downloads.put(state.getId(), state);
+                    if (q % 3 == 0) downloads.delete(q * 7 % 64 + 1);
+                }
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            SparseArray<DlState> snapshot = downloads.snapshot();
+            int size = snapshot.size();
+            for (int q = 0; q < size; q++) {
+                assertEquals(snapshot.keyAt(q), snapshot.valueAt(q).getId());
+            }
+            assertEquals(size, snapshot.size());
+        }
+        writer.join();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import android.os.Parcel;
+
+public class DlSnapshotTest extends TestCase {
+    private static final int DOWNLOADS = 10;
+
+    private final ArrayList<DlState> states = new ArrayList<DlState>();
+
+    @Override
+    protected void setUp() {
+        for (int q = 0; q < DOWNLOADS; q++) {
+            states.add(TestStates.rom(q + 1));
+        }
+        states.get(3).setStatus(DlState.STATUS_PAUSED_USER);
+        states.get(4).setTotalDone(states.get(4).getTotalSize());
+    }
+
+    public void testThroughParcel() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeLongArray(DlSnapshot.pack(42, states, DlState.FILTER_ALL));
+            parcel.setDataPosition(0);
+            DlSnapshot snapshot = new DlSnapshot(parcel.createLongArray());
+
+            assertEquals(42, snapshot.getSeq());
+            assertEquals(states.size(), snapshot.size());
+            for (int q = 0; q < states.size(); q++) {
+                DlState state = states.get(q);
+                assertEquals(state.getId(), snapshot.getId(q));
+                assertEquals(state.getStatus(), snapshot.getStatus(q));
+                assertEquals(state.getTotalSize(), snapshot.getTotalSize(q));
+                assertEquals(state.getTotalDone(), snapshot.getTotalDone(q));
+                assertFalse(snapshot.isRemoved(q));
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testSmallerThanFullParcels() {
+        assertTrue(snapshotSize() < fullSize());
+    }
+
+    public void testEmpty() {
+        DlSnapshot snapshot = new DlSnapshot(null);
+        assertEquals(-1, snapshot.getSeq());
+        assertEquals(0, snapshot.size());
+    }
+
+    /**
+     * @return bytes getDownloads sends for the list
+     */
+    private int fullSize() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(states);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @return bytes getSnapshot sends for the list
+     */
+    private int snapshotSize() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeLongArray(DlSnapshot.pack(0, states, DlState.FILTER_ALL));
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
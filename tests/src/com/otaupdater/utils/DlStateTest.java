@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Races the user cancelling against the download thread reporting its own
+ * end: whichever of {@link DlState#markCancelled} and
+ * {@link DlState#updateStatus} says it won has to be the status left.
+ */
+public class DlStateTest extends TestCase {
+    private static final int ROUNDS = 2000;
+
+    private static final int[] ENDS = {
+        DlState.STATUS_COMPLETED, DlState.STATUS_FAILED, DlState.STATUS_PAUSED_FOR_DATA, DlState.STATUS_PAUSED_RETRY
+    };
+
+    public void testCancelRacingEnd() throws InterruptedException {
+        for (int q = 0; q < ROUNDS; q++) {
+            raceStatus(ENDS[q % ENDS.length]);
+        }
+    }
+
+    public void testCancelAfterEnd() {
+        DlState state = new DlState((KernelInfo) null);
+        state.setStatus(DlState.STATUS_RUNNING);
+        assertTrue(state.updateStatus(DlState.STATUS_COMPLETED));
+        assertFalse(state.markCancelled());
+        assertEquals(DlState.STATUS_COMPLETED, state.getStatus());
+    }
+
+    public void testEndAfterCancel() {
+        DlState state = new DlState((KernelInfo) null);
+        state.setStatus(DlState.STATUS_RUNNING);
+        assertTrue(state.markCancelled());
+        assertFalse(state.updateStatus(DlState.STATUS_PAUSED_FOR_DATA));
+        assertEquals(DlState.STATUS_CANCELLED_USER, state.getStatus());
+    }
+
+    private void raceStatus(final int end) throws InterruptedException {
+        final DlState state = new DlState((KernelInfo) null);
+        state.setStatus(DlState.STATUS_RUNNING);
+        final CountDownLatch go = new CountDownLatch(1);
+        final boolean[] won = new boolean[2];
+
+        Thread user = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(go);
+                won[0] = state.markCancelled();
+            }
+        });
+        Thread download = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(go);
+                won[1] = state.updateStatus(end);
+            }
+        });
+        user.start();
+        download.start();
+        go.countDown();
+        user.join();
+        download.join();
+
+        int status = state.getStatus();
+        if (won[0]) {
+            assertEquals(DlState.STATUS_CANCELLED_USER, status);
+            // a download that ended first can't be cancelled, so it can't have reported after
+            assertFalse(won[1] && isEnd(end));
+        } else {
+            assertTrue(won[1]);
+            assertEquals(end, status);
+        }
+    }
+
+    /**
+     * @return true for statuses after which the user can no longer cancel
+     */
+    private static boolean isEnd(int status) {
+        return status == DlState.STATUS_COMPLETED || status == DlState.STATUS_FAILED;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) { }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class StateCodecTest extends TestCase {
+    public void testRoundTrip() throws IOException {
+        DlState state = TestStates.rom(1);
+        DlState back = StateCodec.decodeState(StateCodec.encode(state));
+
+        assertEquals(state.getId(), back.getId());
+        assertEquals(state.getStatus(), back.getStatus());
+        assertEquals(state.getTotalSize(), back.getTotalSize());
+        assertEquals(state.getTotalDone(), back.getTotalDone());
+        assertEquals(state.getETag(), back.getETag());
+        assertEquals(state.getPriority(), back.getPriority());
+        assertEquals(state.getWeight(), back.getWeight());
+
+        RomInfo info = state.getRomInfo();
+        RomInfo infoBack = back.getRomInfo();
+        assertNotNull(infoBack);
+        assertEquals(info.romName, infoBack.romName);
+        assertEquals(info.version, infoBack.version);
+        assertEquals(info.changelog, infoBack.changelog);
+        assertEquals(info.url, infoBack.url);
+        assertTrue(Arrays.equals(info.mirrors, infoBack.mirrors));
+        assertEquals(info.md5, infoBack.md5);
+        assertEquals(info.date, infoBack.date);
+
+        // anything the checks above missed still has to come out the same
+        assertTrue(Arrays.equals(StateCodec.encode(state), StateCodec.encode(back)));
+    }
+
+    public void testKernelRoundTrip() throws IOException {
+        DlState state = new DlState(new KernelInfo("Example kernel", "3.0", "faster", "http://example.com/kernel.zip",
+                "fedcba9876543210fedcba9876543210", new Date(1350000000000L)));
+        state.setId(2);
+        state.setStatus(DlState.STATUS_QUEUED);
+        assertTrue(Arrays.equals(StateCodec.encode(state), StateCodec.encode(StateCodec.decodeState(StateCodec.encode(state)))));
+    }
+
+    public void testSmallerThanSerializable() throws IOException {
+        DlState state = TestStates.rom(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(bytes);
+        os.writeObject(state);
+        os.close();
+        assertTrue(StateCodec.encode(state).length < bytes.size());
+    }
+
+    public void testTruncated() {
+        byte[] data = StateCodec.encode(TestStates.rom(1));
+        try {
+            StateCodec.decodeState(Arrays.copyOf(data, data.length / 2));
+            fail("decoded half a state");
+        } catch (IOException e) { }
+    }
+
+    public void testNewerVersionRefused() {
+        byte[] data = StateCodec.encode(TestStates.rom(1));
+        data[0] = (byte) (StateCodec.VERSION + 1);
+        try {
+            StateCodec.decodeState(data);
+            fail("decoded a format from the future");
+        } catch (IOException e) { }
+    }
+}
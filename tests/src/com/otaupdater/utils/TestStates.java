@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.util.Date;
+
+/**
+ * Downloads for tests to work with.
+ */
+class TestStates {
+    private TestStates() {
+    }
+
+    /**
+     * A ROM download part way through, with a 40 line changelog.
+     */
+    static DlState rom(int id) {
+        StringBuilder changelog = new StringBuilder();
+        for (int q = 1; q <= 40; q++) {
+            changelog.append("- change number ").append(q).append(" to the ROM\n");
+        }
+        RomInfo info = new RomInfo("Example ROM", "1.2.3", changelog.toString(),
+                "http://example.com/roms/example-1.2.3.zip",
+                new String[] { "http://mirror.example.com/roms/example-1.2.3.zip" },
+                "0123456789abcdef0123456789abcdef", new Date(1350000000000L));
+        DlState state = new DlState(info);
+        state.setId(id);
+        state.setStatus(DlState.STATUS_RUNNING);
+        state.setTotalSize(300 * 1048576L);
+        state.setTotalDone(120 * 1048576L);
+        state.setETag("\"5a3f-4c1b2e\"");
+        return state;
+    }
+}